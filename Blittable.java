@@ -27,6 +27,9 @@ import java.awt.Point;
 import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferInt;
+import java.lang.ref.SoftReference;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * @author Max Reichardt
@@ -37,9 +40,47 @@ public abstract class Blittable {
 
     protected abstract void blitLineToRGB(int[] destBuffer, int destOffset, int srcX, int srcY, int srcOffset, int width);
 
-    /** Temporary buffer for painting images to Graphics2D java objects */
+    /** Frame generation - incremented whenever content changes */
+    private long generation;
+
+    /** Area that changed since content was last blitted to paint buffer (null means: whole area) */
+    private Rectangle changedArea;
+
+    /** Temporary buffer for painting blittables without change tracking to Graphics2D java objects */
     private static ThreadLocal<PaintHelper> paintTempBuffer = new ThreadLocal<PaintHelper>();
 
+    /**
+     * Buffer for painting blittable with change tracking to Graphics2D java objects - and generation of its content.
+     * Only kept while frames are painted repeatedly (and released if memory is short).
+     */
+    private SoftReference<PaintHelper> paintBuffer;
+    private long paintBufferGeneration = -1;
+
+    /** Was paint buffer painted again (without blitting the whole frame) since the whole frame was last blitted to it? */
+    private boolean paintBufferReused;
+
+    /** Generation that was last painted via temporary buffer (blittables with change tracking but without paint buffer) */
+    private long paintedGeneration = -1;
+
+    /** Minimum number of pixels in source area for blitting in parallel */
+    public static final int PARALLEL_BLIT_THRESHOLD = 256 * 256;
+
+    /** Minimum number of pixels in a row band that is blitted by a single task */
+    private static final int MIN_PIXELS_PER_BAND = 32 * 1024;
+
+    /** Are large areas blitted in parallel? */
+    private static volatile boolean parallelBlitting = Runtime.getRuntime().availableProcessors() > 1;
+
+    /** Filters for scaled blitting */
+    public enum Scaling {
+
+        /** Nearest neighbour - only source pixels that are actually displayed are converted */
+        NEAREST,
+
+        /** Box filter - averages all source pixels covered by destination pixel */
+        BOX
+    }
+
     /**
      * Copy (part of) image to another image
      * If necessary, rectangles are automatically made smaller
@@ -49,6 +90,7 @@ public abstract class Blittable {
      * @param srcArea source area (rectangle)
      */
     public void blitTo(Destination destination, Point dest, Rectangle sourceArea) {
+        prepareBlit();
 
         // ensure correct bounds
         Rectangle[] areas = ensureCorrectBounds(destination, dest, sourceArea, getSize());
@@ -59,14 +101,307 @@ public abstract class Blittable {
         Rectangle destArea = areas[0];
 
         // blit
-        int srcPos = srcArea.y * getWidth() + srcArea.x;
         int destPos = destArea.y * destination.getWidth() + destArea.x;
         int[] destBuffer = destination.getBuffer();
-        for (int y = 0; y < srcArea.height; y++) {
-            //System.arraycopy(getBuffer(), srcPos, destination.getBuffer(), destPos, srcArea.width);
-            blitLineToRGB(destBuffer, destPos, srcArea.x, srcArea.y + y, srcPos, srcArea.width);
+        int pixels = srcArea.width * srcArea.height;
+        if (parallelBlitting && pixels >= PARALLEL_BLIT_THRESHOLD && srcArea.height > 1 && isParallelBlittingSupported()) {
+            int bands = Math.min(Math.min(srcArea.height, pixels / MIN_PIXELS_PER_BAND), getBlitPool().getParallelism() * 4);
+            getBlitPool().invoke(new BlitTask(destBuffer, destPos, destination.getWidth(), srcArea.x, srcArea.y, srcArea.width, srcArea.height, Math.max(1, srcArea.height / Math.max(1, bands))));
+        } else {
+            blitLinesToRGB(destBuffer, destPos, destination.getWidth(), srcArea.x, srcArea.y, srcArea.width, srcArea.height);
+        }
+    }
+
+    /**
+     * Blits a band of consecutive lines.
+     * Called by blitTo - possibly concurrently for different bands of the same source area.
+     * May be overridden by subclasses that can convert multiple lines more efficiently.
+     *
+     * @param destBuffer Destination buffer
+     * @param destPos Index of first pixel in destination buffer
+     * @param destStride Number of pixels per line in destination buffer
+     * @param srcX X coordinate of first pixel in source
+     * @param srcY Y coordinate of first line in source
+     * @param width Number of pixels per line
+     * @param lines Number of lines
+     */
+    protected void blitLinesToRGB(int[] destBuffer, int destPos, int destStride, int srcX, int srcY, int width, int lines) {
+        int srcPos = srcY * getWidth() + srcX;
+        for (int y = 0; y < lines; y++) {
+            blitLineToRGB(destBuffer, destPos, srcX, srcY + y, srcPos, width);
             srcPos += getWidth();
-            destPos += destination.getWidth();
+            destPos += destStride;
+        }
+    }
+
+    /**
+     * Copy (part of) image to another image - scaling it to the destination area
+     * (e.g. for thumbnails). Only destination pixels inside the destination's bounds are written.
+     *
+     * @param destination Destination image
+     * @param destArea Destination area
+     * @param sourceArea Source area (is clipped to bounds of this blittable)
+     * @param scaling Filter to use
+     */
+    public void blitScaledTo(Destination destination, Rectangle destArea, Rectangle sourceArea, Scaling scaling) {
+        Rectangle srcArea = sourceArea.intersection(getBounds());
+        Rectangle visible = destArea.intersection(destination.getBounds());
+        if (srcArea.isEmpty() || visible.isEmpty() || destArea.isEmpty()) {
+            return;
+        }
+        prepareBlit();
+        if (scaling == Scaling.BOX) {
+            blitBoxFilteredTo(destination, destArea, srcArea, visible);
+            return;
+        }
+
+        // source column of each visible destination column (pixel centers)
+        int[] srcXs = new int[visible.width];
+        for (int i = 0; i < visible.width; i++) {
+            srcXs[i] = srcArea.x + (int)(((2L * (visible.x - destArea.x + i) + 1) * srcArea.width) / (2L * destArea.width));
+        }
+        int[] destBuffer = destination.getBuffer();
+        int[] rowBuffer = null;
+        int spanStart = srcXs[0], span = srcXs[visible.width - 1] - spanStart + 1;
+        for (int y = visible.y, yEnd = visible.y + visible.height; y < yEnd; y++) {
+            int srcY = srcArea.y + (int)(((2L * (y - destArea.y) + 1) * srcArea.height) / (2L * destArea.height));
+            int destPos = y * destination.getWidth() + visible.x;
+            if (!blitSampledLineToRGB(destBuffer, destPos, srcY, srcXs, visible.width)) {
+                // fallback: convert source span and pick pixels
+                if (rowBuffer == null) {
+                    rowBuffer = new int[span];
+                }
+                blitLinesToRGB(rowBuffer, 0, span, spanStart, srcY, span, 1);
+                for (int i = 0; i < visible.width; i++) {
+                    destBuffer[destPos + i] = rowBuffer[srcXs[i] - spanStart];
+                }
+            }
+        }
+    }
+
+    /**
+     * Copy (whole) image to another image - scaling it to the destination area
+     *
+     * @param destination Destination image
+     * @param destArea Destination area
+     * @param scaling Filter to use
+     */
+    public void blitScaledTo(Destination destination, Rectangle destArea, Scaling scaling) {
+        blitScaledTo(destination, destArea, getBounds(), scaling);
+    }
+
+    /**
+     * Implementation of blitScaledTo with box filter
+     * (if scale factors are powers of two - e.g. 2x or 4x decimation - sums are divided by shifting)
+     *
+     * @param destination Destination image
+     * @param destArea Destination area
+     * @param srcArea Source area (inside bounds)
+     * @param visible Visible part of destination area
+     */
+    private void blitBoxFilteredTo(Destination destination, Rectangle destArea, Rectangle srcArea, Rectangle visible) {
+        int[] x0 = new int[visible.width + 1];
+        for (int i = 0; i <= visible.width; i++) {
+            x0[i] = srcArea.x + (int)(((long)(visible.x - destArea.x + i) * srcArea.width) / destArea.width);
+        }
+        int spanStart = x0[0];
+        int spanEnd = Math.max(x0[visible.width], x0[visible.width - 1] + 1);
+        int span = spanEnd - spanStart;
+        int factorX = srcArea.width / destArea.width, factorY = srcArea.height / destArea.height;
+        int shift = -1;
+        if (factorX * destArea.width == srcArea.width && factorY * destArea.height == srcArea.height && Integer.bitCount(factorX) == 1 && Integer.bitCount(factorY) == 1) {
+            shift = Integer.numberOfTrailingZeros(factorX) + Integer.numberOfTrailingZeros(factorY);
+        }
+
+        int[] destBuffer = destination.getBuffer();
+        int[] rowBuffer = new int[0];
+        for (int y = visible.y, yEnd = visible.y + visible.height; y < yEnd; y++) {
+            int srcY = srcArea.y + (int)(((long)(y - destArea.y) * srcArea.height) / destArea.height);
+            int srcYEnd = Math.max(srcY + 1, srcArea.y + (int)(((long)(y - destArea.y + 1) * srcArea.height) / destArea.height));
+            int lines = srcYEnd - srcY;
+            if (rowBuffer.length < lines * span) {
+                rowBuffer = new int[lines * span];
+            }
+            blitLinesToRGB(rowBuffer, 0, span, spanStart, srcY, span, lines);
+
+            int destPos = y * destination.getWidth() + visible.x;
+            for (int i = 0; i < visible.width; i++) {
+                int start = x0[i] - spanStart;
+                int end = Math.max(start + 1, x0[i + 1] - spanStart);
+                int r = 0, g = 0, b = 0;
+                for (int line = 0, index = 0; line < lines; line++, index += span) {
+                    for (int j = index + start, jEnd = index + end; j < jEnd; j++) {
+                        int rgb = rowBuffer[j];
+                        r += (rgb >> 16) & 0xFF;
+                        g += (rgb >> 8) & 0xFF;
+                        b += rgb & 0xFF;
+                    }
+                }
+                if (shift >= 0) {
+                    destBuffer[destPos + i] = ((r >> shift) << 16) | ((g >> shift) << 8) | (b >> shift);
+                } else {
+                    int count = lines * (end - start);
+                    destBuffer[destPos + i] = ((r / count) << 16) | ((g / count) << 8) | (b / count);
+                }
+            }
+        }
+    }
+
+    /**
+     * Blits selected pixels of a source line (used for nearest-neighbour scaling).
+     * May be overridden by subclasses that can convert single pixels efficiently - so that only displayed pixels are converted.
+     *
+     * @param destBuffer Destination buffer
+     * @param destOffset Index of first pixel in destination buffer
+     * @param srcY Y coordinate of source line
+     * @param srcXs X coordinates of source pixels to blit (ascending)
+     * @param count Number of pixels to blit
+     * @return True if pixels were blitted - false if this is not supported (then the default implementation converts the whole source span)
+     */
+    protected boolean blitSampledLineToRGB(int[] destBuffer, int destOffset, int srcY, int[] srcXs, int count) {
+        return false;
+    }
+
+    /**
+     * Subclasses that call markChanged() whenever their content changes may override this to return true.
+     * If frames are painted repeatedly, standardPaintImplementation then keeps a paint buffer for this blittable
+     * and only blits content that changed.
+     * Otherwise, the whole blittable is blitted to a temporary buffer on every paint.
+     *
+     * @return True if changes of content are reported via markChanged()
+     */
+    protected boolean isChangeTracked() {
+        return false;
+    }
+
+    /**
+     * @return Frame generation - incremented whenever content of this blittable changes
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Notifies blittable that its whole content has changed
+     * (if isChangeTracked() returns true, this must be called after modifying content - otherwise standardPaintImplementation paints the old frame)
+     */
+    public synchronized void markChanged() {
+        generation++;
+        changedArea = null;
+        if (!paintBufferReused) {
+            paintBuffer = null; // frame was painted only once - keeping a copy of it did not pay off
+        }
+        paintBufferReused = false;
+    }
+
+    /**
+     * Notifies blittable that an area of its content has changed
+     * (only this area is blitted again by standardPaintImplementation)
+     *
+     * @param area Area that changed
+     */
+    public synchronized void markChanged(Rectangle area) {
+        generation++;
+        if (changedArea != null) {
+            changedArea = changedArea.isEmpty() ? new Rectangle(area) : changedArea.union(area);
+        }
+    }
+
+    /**
+     * Notifies blittable that an area of its content has changed
+     *
+     * @param x X coordinate of changed area
+     * @param y Y coordinate of changed area
+     * @param width Width of changed area
+     * @param height Height of changed area
+     */
+    public void markChanged(int x, int y, int width, int height) {
+        markChanged(new Rectangle(x, y, width, height));
+    }
+
+    /**
+     * Returns area that changed since last call - and resets it
+     *
+     * @return Changed area (empty if nothing changed; null if unknown - whole area needs to be blitted)
+     */
+    protected synchronized Rectangle takeChangedArea() {
+        Rectangle result = changedArea;
+        changedArea = new Rectangle();
+        return result;
+    }
+
+    /**
+     * Called by blitTo before any lines are blitted.
+     * May be overridden by subclasses that need to prepare their data (e.g. copy it from off-heap memory).
+     */
+    protected void prepareBlit() {
+    }
+
+    /**
+     * Blittables that keep per-line state in blitLineToRGB (and are therefore not thread-safe)
+     * should override this and return false.
+     *
+     * @return True if blitLinesToRGB may be called concurrently for different lines
+     */
+    protected boolean isParallelBlittingSupported() {
+        return true;
+    }
+
+    /**
+     * @param enabled Blit large areas in parallel using multiple threads?
+     */
+    public static void setParallelBlitting(boolean enabled) {
+        parallelBlitting = enabled;
+    }
+
+    /**
+     * @return Are large areas blitted in parallel using multiple threads?
+     */
+    public static boolean isParallelBlitting() {
+        return parallelBlitting;
+    }
+
+    /**
+     * @return Pool that is shared by all blitting and image conversion tasks
+     */
+    public static ForkJoinPool getBlitPool() {
+        return ForkJoinPool.commonPool();
+    }
+
+    /**
+     * Task that blits a band of lines - splits itself until bands are small enough
+     */
+    private class BlitTask extends RecursiveAction {
+
+        /** UID */
+        private static final long serialVersionUID = 4307521590233471946L;
+
+        private final int[] destBuffer;
+        private final int destPos, destStride, srcX, srcY, width, lines, linesPerBand;
+
+        BlitTask(int[] destBuffer, int destPos, int destStride, int srcX, int srcY, int width, int lines, int linesPerBand) {
+            this.destBuffer = destBuffer;
+            this.destPos = destPos;
+            this.destStride = destStride;
+            this.srcX = srcX;
+            this.srcY = srcY;
+            this.width = width;
+            this.lines = lines;
+            this.linesPerBand = linesPerBand;
+        }
+
+        @Override
+        protected void compute() {
+            if (lines <= linesPerBand) {
+                blitLinesToRGB(destBuffer, destPos, destStride, srcX, srcY, width, lines);
+            } else {
+                int half = (lines / 2) & ~1; // keep bands at even lines (subsampled chroma rows)
+                if (half == 0) {
+                    half = lines / 2;
+                }
+                invokeAll(new BlitTask(destBuffer, destPos, destStride, srcX, srcY, width, half, linesPerBand),
+                          new BlitTask(destBuffer, destPos + half * destStride, destStride, srcX, srcY + half, width, lines - half, linesPerBand));
+            }
         }
     }
 
@@ -180,6 +515,84 @@ public abstract class Blittable {
         }
     }
 
+    /**
+     * Blittable providing a rectangular region of another blittable
+     * (e.g. an image's region of interest) - without copying any data
+     */
+    public static class Region extends Blittable {
+
+        /** Blittable that region belongs to */
+        private final Blittable source;
+
+        /** Region in source coordinates */
+        private final int x, y, width, height;
+
+        /**
+         * @param source Blittable that region belongs to
+         * @param region Region in source coordinates (is clipped to source bounds)
+         */
+        public Region(Blittable source, Rectangle region) {
+            Rectangle clipped = region.intersection(source.getBounds());
+            this.source = source;
+            this.x = clipped.x;
+            this.y = clipped.y;
+            this.width = Math.max(0, clipped.width);
+            this.height = Math.max(0, clipped.height);
+        }
+
+        @Override
+        protected void blitLineToRGB(int[] destBuffer, int destOffset, int srcX, int srcY, int srcOffset, int width) {
+            source.blitLinesToRGB(destBuffer, destOffset, width, srcX + x, srcY + y, width, 1);
+        }
+
+        @Override
+        protected void blitLinesToRGB(int[] destBuffer, int destPos, int destStride, int srcX, int srcY, int width, int lines) {
+            source.blitLinesToRGB(destBuffer, destPos, destStride, srcX + x, srcY + y, width, lines);
+        }
+
+        @Override
+        public void blitScaledTo(Destination destination, Rectangle destArea, Rectangle sourceArea, Scaling scaling) {
+            Rectangle srcArea = sourceArea.intersection(getBounds());
+            srcArea.translate(x, y);
+            source.blitScaledTo(destination, destArea, srcArea, scaling);
+        }
+
+        @Override
+        protected void prepareBlit() {
+            source.prepareBlit();
+        }
+
+        @Override
+        protected boolean isParallelBlittingSupported() {
+            return source.isParallelBlittingSupported();
+        }
+
+        @Override
+        protected boolean isChangeTracked() {
+            return source.isChangeTracked();
+        }
+
+        @Override
+        public long getGeneration() {
+            return source.getGeneration();
+        }
+
+        @Override
+        protected Rectangle takeChangedArea() {
+            return null;
+        }
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+    }
+
     /**
      * Helper class for painting blittable to Graphics2D
      */
@@ -214,20 +627,85 @@ public abstract class Blittable {
     /**
      * Standard (slightly inefficient) paint implementation to paint
      * blittable to Graphics2D Java object
-     * (blits blittable to temp buffer and then paints temp buffer to graphics2d)
+     * (blits blittable to paint buffer and then paints paint buffer to graphics2d - see updatePaintBuffer()).
      *
      * @param g Graphics2D object
      */
     public void standardPaintImplementation(Graphics2D g) {
+        BufferedImage img = updatePaintBuffer();
+        if (img != null) {
+            g.drawImage(img, 0, 0, null);
+        }
+    }
+
+    /**
+     * Blits blittable to a paint buffer:
+     * Blittables are usually blitted completely to a temporary buffer of the current thread
+     * (valid until the next call in this thread).
+     * Blittables with change tracking (see isChangeTracked()) get their own paint buffer once a frame is painted again:
+     * If the frame generation did not change since the last call, nothing is blitted.
+     * If only areas marked via markChanged(Rectangle) changed, only these are blitted.
+     * The paint buffer is dropped if the whole frame changes before it was painted again.
+     * May be called from any thread.
+     *
+     * @return Paint buffer (has size of blittable) - or null if blittable is empty
+     */
+    public BufferedImage updatePaintBuffer() {
+        return updatePaintBuffer(false);
+    }
+
+    /**
+     * (see updatePaintBuffer())
+     *
+     * @param retain Keep paint buffer for this blittable in any case (only possible with change tracking)?
+     *               This is required if the result is used after other blittables were painted in the same thread -
+     *               e.g. if blittables are prepared for painting concurrently.
+     * @return Paint buffer (has size of blittable) - or null if blittable is empty
+     */
+    public BufferedImage updatePaintBuffer(boolean retain) {
         if (getWidth() <= 0 || getHeight() <= 0) {
-            return;
+            return null;
+        }
+        if (isChangeTracked()) {
+            synchronized (this) {
+                long currentGeneration = getGeneration();
+                Rectangle changed = takeChangedArea();
+                PaintHelper buffer = paintBuffer != null ? paintBuffer.get() : null;
+                if (buffer != null && buffer.getWidth() == getWidth() && buffer.getHeight() == getHeight()) {
+                    if (currentGeneration != paintBufferGeneration) {
+                        if (changed == null) {
+                            blitTo(buffer);
+                        } else {
+                            changed = changed.intersection(getBounds());
+                            if (!changed.isEmpty()) {
+                                blitTo(buffer, changed.getLocation(), changed);
+                            }
+                            paintBufferReused = true;
+                        }
+                    } else {
+                        paintBufferReused = true;
+                    }
+                    paintBufferGeneration = currentGeneration;
+                    return buffer;
+                }
+                if (retain || currentGeneration == paintedGeneration) {
+                    // frame is painted again: keep paint buffer from now on
+                    buffer = new PaintHelper(getWidth(), getHeight());
+                    blitTo(buffer);
+                    paintBuffer = new SoftReference<PaintHelper>(buffer);
+                    paintBufferGeneration = currentGeneration;
+                    paintBufferReused = true;
+                    return buffer;
+                }
+                paintedGeneration = currentGeneration;
+            }
         }
         PaintHelper img = paintTempBuffer.get();
         if (img == null || img.getWidth() < getWidth() || img.getHeight() < getHeight()) {
-            img = new PaintHelper(getWidth(), getHeight());
+            img = new PaintHelper(Math.max(getWidth(), img == null ? 0 : img.getWidth()), Math.max(getHeight(), img == null ? 0 : img.getHeight()));
             paintTempBuffer.set(img);
         }
         blitTo(img);
-        g.drawImage(img, 0, 0, null);
+        return img.getWidth() == getWidth() && img.getHeight() == getHeight() ? img : img.getSubimage(0, 0, getWidth(), getHeight());
     }
 }
@@ -22,25 +22,40 @@
 package org.finroc.plugins.data_types;
 
 import java.lang.Math;
+import java.awt.AlphaComposite;
 import java.awt.BasicStroke;
 import java.awt.Color;
+import java.awt.Composite;
+import java.awt.Font;
+import java.awt.FontMetrics;
 import java.awt.Graphics2D;
+import java.awt.Paint;
 import java.awt.Rectangle;
 import java.awt.RenderingHints;
+import java.awt.Shape;
+import java.awt.Stroke;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Ellipse2D;
 import java.awt.geom.Line2D;
+import java.awt.geom.NoninvertibleTransformException;
 import java.awt.geom.Path2D;
 import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.EnumSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 import org.finroc.plugins.data_types.util.BezierSpline;
 import org.finroc.plugins.data_types.util.BoundsExtractingGraphics2D;
+import org.finroc.plugins.data_types.util.BufferPool;
 import org.finroc.plugins.data_types.util.FastBufferedImage;
 import org.finroc.plugins.data_types.util.GraphicsUtil;
+import org.finroc.plugins.data_types.util.UniformGridIndex;
 import org.rrlib.logging.Log;
 import org.rrlib.logging.LogLevel;
 import org.rrlib.serialization.BinaryInputStream;
@@ -59,6 +74,28 @@ public class Canvas extends MemoryBuffer implements PaintablePortData {
     private final static double cARROW_HEAD_SIZE = 5.0;
     private final static double cSTROKE_WIDTH = 1.0;
 
+    /** Z-levels with at least this number of primitives get a spatial index - so that only visible primitives are painted */
+    private final static int cSPATIAL_INDEX_THRESHOLD = 1024;
+
+    /** Primitives are culled if they are further outside the visible area than this (in pixels) - covers edges, points and arrow heads */
+    private final static double cCULLING_MARGIN = 2 * cARROW_HEAD_SIZE + 2;
+
+    /** Maximum number of points in one PointsPrimitive (so that runs of points can still be culled in parts) */
+    private final static int cMAX_POINTS_PER_PRIMITIVE = 1024;
+
+    /** Canvases with at least this number of primitives (in at least two Z-levels) are rendered in parallel */
+    private final static int cPARALLEL_RENDERING_THRESHOLD = 16384;
+
+    /** Maximum number of bytes in off-screen layers used by one paint call for parallel rendering - and in unused layers kept for reuse */
+    private final static long cMAX_LAYER_MEMORY = 64L * 1024 * 1024;
+
+    /** Are Z-levels of large canvases rendered in parallel? (disabled by default - see setParallelRendering()) */
+    private static volatile boolean parallelRendering = false;
+
+    /** Unused off-screen layers for parallel rendering (all have the same size) - and their total size in bytes */
+    private static final ArrayDeque<Layer> unusedLayers = new ArrayDeque<Layer>();
+    private static long unusedLayerMemory;
+
     enum Opcode {
         // ####### tCanvas-supported opcodes ########
 
@@ -132,22 +169,515 @@ public class Canvas extends MemoryBuffer implements PaintablePortData {
     /*! Bytes per value of enum above */
     static final int[] numberTypeBytes = new int[] { 4, 8, 0, 1, 1, 2, 2, 4, 4, 8, 8 };
 
-    class RenderContext implements Comparable<RenderContext> {
-        Color edgeColor, fillColor;
-        boolean fill;
-        double z;
-        AffineTransform at = new AffineTransform();
-        int bufferOffset;
-        int commandCount;
+    /** Opcodes that add a primitive to the display list */
+    private static final EnumSet<Opcode> PRIMITIVE_OPCODES = EnumSet.range(Opcode.eDRAW_POINT, Opcode.ePATH_START);
 
-        public RenderContext(AffineTransform at, Color edgeColor, Color fillColor, boolean fill, double z, long bufferOffset) {
-            this.at.setTransform(at);
+    /** Arrow head shape (pointing in direction of x axis) */
+    private static final Path2D.Double ARROW_HEAD = new Path2D.Double();
+
+    static {
+        ARROW_HEAD.moveTo(0.0, 0.0);
+        ARROW_HEAD.lineTo(-2.0, 1.0);
+        ARROW_HEAD.lineTo(-2.0, -1.0);
+        ARROW_HEAD.lineTo(0.0, 0.0);
+    }
+
+    /**
+     * State that primitives are painted with: transformation (relative to default transformation), colors and fill mode.
+     *
+     * Immutable. Consecutive primitives share the same instance - and states with the same transformation the same AffineTransform.
+     */
+    static class DrawState {
+        final AffineTransform transform;
+        final Color edgeColor, fillColor;
+        final boolean fill;
+
+        DrawState(AffineTransform transform, Color edgeColor, Color fillColor, boolean fill) {
+            this.transform = transform;
             this.edgeColor = edgeColor;
             this.fillColor = fillColor;
             this.fill = fill;
+        }
+    }
+
+    /**
+     * Geometry primitive in display list - decoded from opcode stream once
+     */
+    static abstract class Primitive {
+
+        /** State that primitive is painted with */
+        final DrawState state;
+
+        Primitive(DrawState state) {
+            this.state = state;
+        }
+
+        /**
+         * Paints primitive
+         *
+         * @param c Paint context (graphics object has transformation and edge color of primitive's state set)
+         */
+        abstract void paint(PaintContext c);
+
+        /**
+         * @param bounds Rectangle to store primitive's bounds in (local coordinates - without extents that do not scale, such as edge width)
+         * @return False if primitive has no bounds in local coordinates (bounds is not modified then)
+         */
+        abstract boolean getBounds(Rectangle2D.Double bounds);
+    }
+
+    /**
+     * Variables used while painting display list (one instance per paint() call)
+     */
+    static class PaintContext {
+        final Graphics2D g;
+        final FastBufferedImage imageBuffer;
+        final AffineTransform defaultTransform;
+        final boolean drawPrettyPoints;
+
+        /** Current state - and values derived from its transformation */
+        DrawState state;
+        AffineTransform transform;
+        Shape clip;
+        ScalingFactors scaling;
+
+        // Shapes
+        final Line2D.Double line = new Line2D.Double();
+        final Ellipse2D.Double ellipse = new Ellipse2D.Double();
+        final Rectangle2D.Double rect = new Rectangle2D.Double();
+
+        // Helper objects for line drawing
+        final Point2D.Double p1 = new Point2D.Double();
+        final Point2D.Double p2 = new Point2D.Double();
+        final Point2D.Double p1t = new Point2D.Double();
+        final Point2D.Double p2t = new Point2D.Double();
+
+        PaintContext(Graphics2D g, FastBufferedImage imageBuffer, AffineTransform defaultTransform) {
+            this.g = g;
+            this.imageBuffer = imageBuffer;
+            this.defaultTransform = defaultTransform;
+            drawPrettyPoints = g.getRenderingHint(RenderingHints.KEY_RENDERING) == RenderingHints.VALUE_RENDER_QUALITY;
+        }
+
+        /**
+         * Applies state to graphics object (only what differs from current state)
+         *
+         * @param newState New state
+         */
+        void setState(DrawState newState) {
+            if (state == null || newState.transform != state.transform) {
+                g.setTransform(defaultTransform);
+                g.transform(newState.transform);
+                transform = g.getTransform();
+                clip = g.getClip();
+                scaling = calculateScalingFactorsAndUpdateStrokeWidth(g);
+            }
+            if (state == null || newState.edgeColor != state.edgeColor) {
+                g.setColor(newState.edgeColor);
+            }
+            state = newState;
+        }
+    }
+
+    /**
+     * Run of consecutive eDRAW_POINT commands with the same state.
+     * Points are transformed in one loop - and written directly to the image buffer if there is one.
+     */
+    static class PointsPrimitive extends Primitive {
+
+        /** Coordinates of points (x1, y1, x2, y2, ...) */
+        double[] coordinates = new double[16];
+
+        /** Number of points */
+        int count;
+
+        PointsPrimitive(DrawState state) {
+            super(state);
+        }
+
+        /**
+         * Adds point (only during compilation)
+         */
+        void add(double x, double y) {
+            if (count * 2 == coordinates.length) {
+                coordinates = Arrays.copyOf(coordinates, coordinates.length * 2);
+            }
+            coordinates[count * 2] = x;
+            coordinates[count * 2 + 1] = y;
+            count++;
+        }
+
+        @Override
+        void paint(PaintContext c) {
+            int values = count * 2;
+            if (c.imageBuffer != null) {
+                AffineTransform t = c.transform;
+                double m00 = t.getScaleX(), m01 = t.getShearX(), m02 = t.getTranslateX();
+                double m10 = t.getShearY(), m11 = t.getScaleY(), m12 = t.getTranslateY();
+                int[] buffer = c.imageBuffer.getBuffer();
+                int width = c.imageBuffer.getWidth(), height = c.imageBuffer.getHeight();
+                int rgb = state.edgeColor.getRGB() | 0xFF000000;
+                Shape clip = c.clip;
+                for (int i = 0; i < values; i += 2) {
+                    double x = coordinates[i], y = coordinates[i + 1];
+                    if (clip == null || clip.contains(x, y)) {
+                        int px = (int)(x * m00 + y * m01 + m02);
+                        int py = (int)(x * m10 + y * m11 + m12);
+                        if (px >= 0 && px < width && py >= 0 && py < height) {
+                            buffer[py * width + px] = rgb;
+                        }
+                    }
+                }
+                return;
+            }
+
+            // skip points outside clip (Java2D calls are expensive)
+            Rectangle clipBounds = (c.g instanceof BoundsExtractingGraphics2D) ? null : c.g.getClipBounds();
+            double margin = 1 / Math.min(c.scaling.x, c.scaling.y);
+            double minX = clipBounds != null ? clipBounds.getMinX() - margin : Double.NEGATIVE_INFINITY;
+            double maxX = clipBounds != null ? clipBounds.getMaxX() + margin : Double.POSITIVE_INFINITY;
+            double minY = clipBounds != null ? clipBounds.getMinY() - margin : Double.NEGATIVE_INFINITY;
+            double maxY = clipBounds != null ? clipBounds.getMaxY() + margin : Double.POSITIVE_INFINITY;
+            for (int i = 0; i < values; i += 2) {
+                double x = coordinates[i], y = coordinates[i + 1];
+                if (x < minX || x > maxX || y < minY || y > maxY) {
+                    continue;
+                }
+                if (c.drawPrettyPoints) {
+                    c.ellipse.x = x - 0.5 / c.scaling.x;
+                    c.ellipse.y = y - 0.5 / c.scaling.y;
+                    c.ellipse.width = 1 / c.scaling.x;
+                    c.ellipse.height = 1 / c.scaling.y;
+                    c.g.fill(c.ellipse);
+                } else {
+                    c.line.x1 = x;
+                    c.line.x2 = x;
+                    c.line.y1 = y;
+                    c.line.y2 = y;
+                    c.g.draw(c.line);
+                }
+            }
+        }
+
+        @Override
+        boolean getBounds(Rectangle2D.Double bounds) {
+            bounds.setFrameFromDiagonal(coordinates[0], coordinates[1], coordinates[0], coordinates[1]);
+            for (int i = 2; i < count * 2; i += 2) {
+                bounds.add(coordinates[i], coordinates[i + 1]);
+            }
+            return true;
+        }
+    }
+
+    /** eDRAW_LINE (infinite line through point in direction of vector) */
+    static class LinePrimitive extends Primitive {
+        final double x1, y1, vecx, vecy;
+
+        LinePrimitive(DrawState state, double x1, double y1, double vecx, double vecy) {
+            super(state);
+            this.x1 = x1;
+            this.y1 = y1;
+            this.vecx = vecx;
+            this.vecy = vecy;
+        }
+
+        @Override
+        void paint(PaintContext c) {
+            if (c.g instanceof BoundsExtractingGraphics2D) {
+                return;
+            }
+            AffineTransform at = c.transform;
+            Point2D.Double p1 = c.p1, p2 = c.p2, p1t = c.p1t, p2t = c.p2t;
+            double vecx = this.vecx, vecy = this.vecy;
+            Rectangle r = c.g.getClipBounds();
+            if (r == null && c.imageBuffer != null) {
+                p1.x = 0;
+                p1.y = 0;
+                p2.x = c.imageBuffer.getWidth();
+                p2.y = c.imageBuffer.getHeight();
+                try {
+                    r = new Rectangle();
+                    at.inverseTransform(p1, p1t);
+                    at.inverseTransform(p2, p2t);
+                    r.x = (int)Math.round(Math.min(p1t.x, p2t.x)) - 1;
+                    r.y = (int)Math.round(Math.min(p1t.y, p2t.y)) - 1;
+                    r.width = (int)Math.round(Math.abs(p1t.x - p2t.x)) + 2;
+                    r.height = (int)Math.round(Math.abs(p1t.y - p2t.y)) + 2;
+                } catch (Exception e) {
+                    Log.log(LogLevel.ERROR, e);
+                }
+            }
+            while (true) {
+                p1.x = x1 - vecx;
+                p1.y = y1 - vecy;
+                p2.x = x1 + vecx;
+                p2.y = y1 + vecy;
+
+                if (r == null || p1.x < r.getMinX() && p2.x > r.getMaxX() || p2.x < r.getMinX() && p1.x > r.getMaxX() ||
+                        p1.y < r.getMinY() && p2.y > r.getMaxY() || p2.y < r.getMinY() && p1.y > r.getMaxY()) {
+                    break;
+                }
+
+                vecx *= 8;
+                vecy *= 8;
+            }
+            c.line.setLine(p1, p2);
+            c.g.draw(c.line);
+        }
+
+        @Override
+        boolean getBounds(Rectangle2D.Double bounds) {
+            return false;
+        }
+    }
+
+    /** Shape that is drawn - and optionally filled (line segments, line strips, ellipses, polygons, splines and paths) */
+    static class ShapePrimitive extends Primitive {
+        final Shape shape;
+
+        /** Fill shape? Fill after drawing the edge (instead of before)? */
+        final boolean fill, fillAfterDraw;
+
+        ShapePrimitive(DrawState state, Shape shape, boolean fill, boolean fillAfterDraw) {
+            super(state);
+            this.shape = shape;
+            this.fill = fill;
+            this.fillAfterDraw = fillAfterDraw;
+        }
+
+        @Override
+        void paint(PaintContext c) {
+            if (fill && !fillAfterDraw) {
+                c.g.setColor(state.fillColor);
+                c.g.fill(shape);
+                c.g.setColor(state.edgeColor);
+            }
+            c.g.draw(shape);
+            if (fill && fillAfterDraw) {
+                c.g.setColor(state.fillColor);
+                c.g.fill(shape);
+                c.g.setColor(state.edgeColor);
+            }
+        }
+
+        @Override
+        boolean getBounds(Rectangle2D.Double bounds) {
+            bounds.setRect(shape.getBounds2D());
+            return true;
+        }
+    }
+
+    /** eDRAW_ARROW */
+    static class ArrowPrimitive extends Primitive {
+        final double x1, y1, x2, y2;
+        final boolean undirected;
+
+        ArrowPrimitive(DrawState state, double x1, double y1, double x2, double y2, boolean undirected) {
+            super(state);
+            this.x1 = x1;
+            this.y1 = y1;
+            this.x2 = x2;
+            this.y2 = y2;
+            this.undirected = undirected;
+        }
+
+        @Override
+        void paint(PaintContext c) {
+            Graphics2D g = c.g;
+            c.line.setLine(x1, y1, x2, y2);
+            g.draw(c.line);
+
+            double angle = Math.atan2(y2 - y1, x2 - x1);
+
+            g.translate(x2, y2);
+            g.rotate(angle);
+            g.scale(cARROW_HEAD_SIZE / c.scaling.x, cARROW_HEAD_SIZE / c.scaling.y);
+            g.fill(ARROW_HEAD);
+
+            if (undirected) {
+                g.setTransform(c.transform);
+                g.translate(x1, y1);
+                g.rotate(angle + Math.PI);
+                g.scale(cARROW_HEAD_SIZE / c.scaling.x, cARROW_HEAD_SIZE / c.scaling.y);
+                g.fill(ARROW_HEAD);
+            }
+
+            g.setTransform(c.transform);
+        }
+
+        @Override
+        boolean getBounds(Rectangle2D.Double bounds) {
+            bounds.setFrameFromDiagonal(x1, y1, x2, y2);
+
+            // arrow heads (their size depends on the scaling of the canvas transformation)
+            AffineTransform t = state.transform;
+            double headLength = 2 * cARROW_HEAD_SIZE / Math.hypot(t.getScaleX(), t.getShearY());
+            double headWidth = cARROW_HEAD_SIZE / Math.hypot(t.getShearX(), t.getScaleY());
+            double angle = Math.atan2(y2 - y1, x2 - x1);
+            double cos = Math.cos(angle), sin = Math.sin(angle);
+            double backX = -headLength * cos, backY = -headLength * sin, sideX = -headWidth * sin, sideY = headWidth * cos;
+            bounds.add(x2 + backX + sideX, y2 + backY + sideY);
+            bounds.add(x2 + backX - sideX, y2 + backY - sideY);
+            if (undirected) {
+                bounds.add(x1 - backX + sideX, y1 - backY + sideY);
+                bounds.add(x1 - backX - sideX, y1 - backY - sideY);
+            }
+            return true;
+        }
+    }
+
+    /** eDRAW_BOX */
+    static class BoxPrimitive extends Primitive {
+        final double x, y, width, height;
+
+        BoxPrimitive(DrawState state, double x, double y, double width, double height) {
+            super(state);
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        void paint(PaintContext c) {
+            FastBufferedImage imageBuffer = c.imageBuffer;
+            //if (imageBuffer != null && c.clip == null && (!GraphicsUtil.isRotation(c.transform))) {  // this would be possible, however, we get double-pixel-lines in grid maps (due to rounding errors)
+            if (imageBuffer != null && c.clip == null && (!GraphicsUtil.isRotation(c.transform)) && state.fill && state.edgeColor.equals(state.fillColor)) {
+                c.p1.x = x;
+                c.p1.y = y;
+                int width = (int)Math.round(this.width * c.scaling.x) + 1; /*Math.max(1, (int)Math.round(this.width * c.scaling.x))*/;
+                int height = (int)Math.round(this.height * c.scaling.y) + 1; /*Math.max(1, (int)Math.round(this.height * c.scaling.y))*/;
+                c.transform.transform(c.p1, c.p2);
+
+                // intersection with image bounds
+                int x1 = (int)Math.round(c.p2.x);
+                int y1 = ((int)Math.round(c.p2.y)) - height;
+                int x2 = Math.min(x1 + width, imageBuffer.getWidth());
+                int y2 = Math.min(y1 + height, imageBuffer.getHeight());
+                x1 = Math.max(0, x1);
+                y1 = Math.max(0, y1);
+                int rectWidth = x2 - x1;
+                int rectHeight = y2 - y1;
+                if (rectWidth <= 0 || rectHeight <= 0) {
+                    return;
+                }
+                int[] buffer = imageBuffer.getBuffer();
+                int imageWidth = imageBuffer.getWidth();
+
+                // fill
+                int fillRGB = state.fillColor.getRGB() | 0xFF000000;
+                int destPos = y1 * imageWidth + x1;
+                for (int y = 1; y < rectHeight - 1; y++) {
+                    destPos += imageWidth;
+                    Arrays.fill(buffer, destPos, destPos + rectWidth, fillRGB);
+                }
+
+                // draw border
+                int rgb = state.edgeColor.getRGB() | 0xFF000000;
+                destPos = y1 * imageWidth + x1;
+                Arrays.fill(buffer, destPos, destPos + rectWidth, rgb);
+                for (int y = 1; y < rectHeight - 1; y++) {
+                    destPos += imageWidth;
+                    buffer[destPos] = rgb;
+                    buffer[destPos + rectWidth] = rgb;
+                }
+                destPos += imageWidth;
+                if (destPos + rectWidth <= buffer.length) {
+                    Arrays.fill(buffer, destPos, destPos + rectWidth, rgb);
+                }
+
+            } else {
+                c.rect.x = x;
+                c.rect.y = y;
+                c.rect.width = width;
+                c.rect.height = height;
+                if (state.fill) {
+                    c.g.setColor(state.fillColor);
+                    c.g.fill(c.rect);
+                    c.g.setColor(state.edgeColor);
+                }
+                c.g.draw(c.rect);
+            }
+        }
+
+        @Override
+        boolean getBounds(Rectangle2D.Double bounds) {
+            bounds.setRect(x, y, width, height);
+            return true;
+        }
+    }
+
+    /** eDRAW_STRING (drawn without rotation and scaling) */
+    static class StringPrimitive extends Primitive {
+        final double x, y;
+        final String string;
+
+        StringPrimitive(DrawState state, double x, double y, String string) {
+            super(state);
+            this.x = x;
+            this.y = y;
+            this.string = string;
+        }
+
+        @Override
+        void paint(PaintContext c) {
+            c.p1.x = x;
+            c.p1.y = y;
+            c.transform.transform(c.p1, c.p1t);
+            // create a transformation without a rotation
+            c.g.setTransform(AffineTransform.getTranslateInstance(c.p1t.x, c.p1t.y));
+            c.g.drawString(string, 0, 0);
+            // reset transform
+            c.g.setTransform(c.transform);
+        }
+
+        @Override
+        boolean getBounds(Rectangle2D.Double bounds) {
+            return false;
+        }
+    }
+
+    /** eDRAW_BEZIER_CURVE (subdivided depending on current scaling) */
+    static class BezierCurvePrimitive extends Primitive {
+        final int degree;
+        final double[] values;
+
+        BezierCurvePrimitive(DrawState state, int degree, double[] values) {
+            super(state);
+            this.degree = degree;
+            this.values = values;
+        }
+
+        @Override
+        void paint(PaintContext c) {
+            double twist_threshold = 1.0 / Math.sqrt(Math.pow(c.scaling.x, 2) + Math.pow(c.scaling.y, 2));
+            drawBezierCurve(c.g, degree, values, twist_threshold);
+        }
+
+        @Override
+        boolean getBounds(Rectangle2D.Double bounds) {
+            bounds.setFrameFromDiagonal(values[0], values[1], values[0], values[1]);
+            for (int i = 2; i < values.length; i += 2) {
+                bounds.add(values[i], values[i + 1]);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Z-Level with its display list
+     */
+    static class RenderContext implements Comparable<RenderContext> {
+        final double z;
+
+        /** Primitives in this Z-level in the order they are painted (not modified after compilation) */
+        final ArrayList<Primitive> primitives = new ArrayList<Primitive>();
+
+        /** Spatial index over primitives' bounds in canvas coordinates (null if level has only a few primitives) */
+        UniformGridIndex index;
+
+        public RenderContext(double z) {
             this.z = z;
-            this.bufferOffset = (int)bufferOffset;
-            zLevels.add(this);
         }
 
         @Override
@@ -156,10 +686,13 @@ public class Canvas extends MemoryBuffer implements PaintablePortData {
         }
     }
 
-    /** Render contexts (one for every Z-Level) in current data */
-    private ArrayList<RenderContext> zLevels = new ArrayList<RenderContext>();
+    /** Render contexts (one for every Z-Level) in current data - sorted by Z. Replaced as a whole when data changes. */
+    private volatile ArrayList<RenderContext> zLevels = new ArrayList<RenderContext>();
+
+    /** Bounds of current data (default viewport if specified) - determined during compilation (null if canvas is empty) */
+    private volatile Rectangle2D bounds;
 
-    /** Temporary variables for Z-Level extraction */
+    /** Temporary variables for display list compilation */
     BinaryInputStream tempInputStreamZExtraction = new BinaryInputStream(this);
     double[] tempArrayZExtraction = new double[6];
 
@@ -170,14 +703,17 @@ public class Canvas extends MemoryBuffer implements PaintablePortData {
     @Override
     public void deserialize(BinaryInputStream rv) {
         super.deserialize(rv);
-        extractZLevels();
+        compileDisplayList();
     }
 
     /**
-     * Extract all areas with the same Z-level and store them in zLevels
+     * Decodes opcode stream into display lists: all primitives with the same Z-level
+     * (with their state) are stored in one RenderContext in zLevels.
+     * Painting only replays these lists - without parsing the stream again.
+     * Also determines the canvas' bounds.
      */
-    private void extractZLevels() {
-        zLevels.clear();
+    private void compileDisplayList() {
+        ArrayList<RenderContext> levels = new ArrayList<RenderContext>();
         BinaryInputStream is = tempInputStreamZExtraction;
         is.reset(this);
         double[] v = tempArrayZExtraction;
@@ -185,137 +721,506 @@ public class Canvas extends MemoryBuffer implements PaintablePortData {
         Color edgeColor = Color.BLACK;
         Color fillColor = Color.BLACK;
         boolean fill = false;
-        RenderContext current = new RenderContext(at, edgeColor, fillColor, fill, 0, 0);
-        zLevels.add(current);
-        while (is.moreDataAvailable()) {
-            Opcode opcode = is.readEnum(Opcode.class);
-            if (opcode != Opcode.ePATH_CUBIC_BEZIER_CURVE && opcode != Opcode.ePATH_QUADRATIC_BEZIER_CURVE && opcode != Opcode.ePATH_LINE) {
-                current.commandCount++;
+        DrawState state = null; // state of next primitive (null if it needs to be created)
+        AffineTransform stateTransform = null; // transformation of next primitive (null if it needs to be created)
+        RenderContext current = new RenderContext(0);
+        levels.add(current);
+        Rectangle2D.Double viewport = null;
+        long viewportOffset = 0; // offset of default viewport (if there is one)
+        boolean readNextOpcode = true;
+        Opcode opcode = null;
+        long opcodeOffset = 0;
+        parse:
+        while (!readNextOpcode || is.moreDataAvailable()) {
+            if (readNextOpcode) {
+                opcodeOffset = is.getAbsoluteReadPosition();
+                opcode = is.readEnum(Opcode.class);
+            } else {
+                readNextOpcode = true;
+            }
+            if (state == null && PRIMITIVE_OPCODES.contains(opcode)) {
+                if (stateTransform == null) {
+                    stateTransform = new AffineTransform(at);
+                }
+                state = new DrawState(stateTransform, edgeColor, fillColor, fill);
             }
             switch (opcode) {
             case eSET_TRANSFORMATION:
                 at.setTransform(new AffineTransform(readValues(is, v, 6)));
+                state = null;
+                stateTransform = null;
                 break;
             case eTRANSFORM:
                 at.concatenate(new AffineTransform(readValues(is, v, 6)));
+                state = null;
+                stateTransform = null;
                 break;
             case eTRANSLATE:      // [2D-vector]
                 readValues(is, v, 2);
                 at.translate(v[0], v[1]);
+                state = null;
+                stateTransform = null;
                 break;
             case eROTATE:         // [yaw]
                 readValues(is, v, 1);
                 at.rotate(v[0]);
+                state = null;
+                stateTransform = null;
                 break;
             case eSCALE:          // [2D-vector]
                 readValues(is, v, 2);
                 at.scale(v[0], v[1]);
+                state = null;
+                stateTransform = null;
                 break;
             case eRESET_TRANSFORMATION:
                 at.setToIdentity();
+                state = null;
+                stateTransform = null;
                 break;
 
             case eSET_COLOR:         // [RGB: 3 bytes]
                 edgeColor = new Color(is.readByte() & 0xFF, is.readByte() & 0xFF, is.readByte() & 0xFF, edgeColor.getAlpha());
                 fillColor = edgeColor;
+                state = null;
                 break;
             case eSET_EDGE_COLOR:    // [RGB: 3 bytes]
                 edgeColor = new Color(is.readByte() & 0xFF, is.readByte() & 0xFF, is.readByte() & 0xFF, edgeColor.getAlpha());
+                state = null;
                 break;
             case eSET_FILL_COLOR:    // [RGB: 3 bytes]
                 fillColor = new Color(is.readByte() & 0xFF, is.readByte() & 0xFF, is.readByte() & 0xFF, fillColor.getAlpha());
+                state = null;
                 break;
             case eSET_ALPHA:
                 int alpha = is.readByte() & 0xFF;
                 if (alpha != edgeColor.getAlpha()) {
                     edgeColor = new Color(edgeColor.getRed(), edgeColor.getGreen(), edgeColor.getBlue(), alpha);
+                    state = null;
                 }
                 if (alpha != fillColor.getAlpha()) {
                     fillColor = new Color(fillColor.getRed(), fillColor.getGreen(), fillColor.getBlue(), alpha);
+                    state = null;
                 }
                 break;
             case eSET_FILL:          // [bool]
                 fill = is.readBoolean();
+                state = null;
                 break;
             case eSET_Z:             // [value]
                 readValues(is, v, 1);
                 if (v[0] != current.z) {
-                    current = new RenderContext(at, edgeColor, fillColor, fill, v[0], is.getAbsoluteReadPosition());
+                    current = new RenderContext(v[0]);
+                    levels.add(current);
                 }
                 break;
             case eSET_EXTRUSION:
                 readValues(is, v, 1);
                 break;
 
-            case eDRAW_POINT:              // [2D-vector]
-            case ePATH_LINE:
-                skipValues(is, 2);
+            case eDRAW_POINT: {            // [2D-vector]
+                readValues(is, v, 2);
+                Primitive last = current.primitives.isEmpty() ? null : current.primitives.get(current.primitives.size() - 1);
+                PointsPrimitive points = (last instanceof PointsPrimitive && last.state == state && ((PointsPrimitive)last).count < cMAX_POINTS_PER_PRIMITIVE) ? (PointsPrimitive)last : null;
+                if (points == null) {
+                    points = new PointsPrimitive(state);
+                    current.primitives.add(points);
+                }
+                points.add(v[0], v[1]);
+                break;
+            }
+
+            case eDRAW_LINE:               // [2D-point][2D-vector]
+                readValues(is, v, 4);
+                current.primitives.add(new LinePrimitive(state, v[0], v[1], v[2], v[3]));
                 break;
 
-            case eDRAW_ARROW:              // [bool][2D-point][2D-point]
-                is.readBoolean();
-            case eDRAW_LINE:               // [2D-point][2D-point]
             case eDRAW_LINE_SEGMENT:       // [2D-point][2D-point]
+                readValues(is, v, 4);
+                current.primitives.add(new ShapePrimitive(state, new Line2D.Double(v[0], v[1], v[2], v[3]), false, false));
+                break;
+
+            case eDRAW_LINE_STRIP:         // [number of values][2D-vector1]...[2D-vectorN]
+            case eDRAW_POLYGON: {          // [number of values][2D-vector1]...[2D-vectorN]
+                int points = is.readShort();
+                double[] values = readValues(is, new double[points * 2], points * 2);
+                if (points > 0) {
+                    Path2D.Double path = new Path2D.Double(Path2D.WIND_NON_ZERO, points + 1);
+                    path.moveTo(values[0], values[1]);
+                    for (int j = 1; j < points; j++) {
+                        path.lineTo(values[j * 2], values[j * 2 + 1]);
+                    }
+                    boolean polygon = opcode == Opcode.eDRAW_POLYGON;
+                    if (polygon) {
+                        path.lineTo(values[0], values[1]);
+                    }
+                    current.primitives.add(new ShapePrimitive(state, path, polygon && fill, false));
+                }
+                break;
+            }
+
+            case eDRAW_ARROW:              // [bool][2D-point][2D-point]
+                boolean undirected = is.readBoolean();
+                readValues(is, v, 4);
+                current.primitives.add(new ArrowPrimitive(state, v[0], v[1], v[2], v[3], undirected));
+                break;
+
             case eDRAW_BOX:                // [2D-point][width][height]
+                readValues(is, v, 4);
+                current.primitives.add(new BoxPrimitive(state, v[0], v[1], v[2], v[3]));
+                break;
+
             case eDRAW_ELLIPSOID:          // [2D-point][width][height]
-            case eDEFAULT_VIEWPORT:        // [left,bottom,width,height]
-            case ePATH_QUADRATIC_BEZIER_CURVE:
-                skipValues(is, 4);
+                readValues(is, v, 4);
+                current.primitives.add(new ShapePrimitive(state, new Ellipse2D.Double(v[0], v[1], v[2], v[3]), fill, false));
                 break;
 
-            case eDRAW_SPLINE:             // [number of values][2D-vector1]...[2D-vectorN]  (bezier spline)
-                is.readFloat();
-            case eDRAW_POLYGON:            // [number of values][2D-vector1]...[2D-vectorN]
-            case eDRAW_LINE_STRIP:
+            case eDRAW_SPLINE: {           // [number of values][2D-vector1]...[2D-vectorN]  (bezier spline)
+                float tension = is.readFloat();
                 int points = is.readShort();
-                skipValues(is, points * 2);
+                double[] values = readValues(is, new double[points * 2], points * 2);
+                Point2D.Double[] splinePoints = new Point2D.Double[points];
+                for (int j = 0; j < points; j++) {
+                    splinePoints[j] = new Point2D.Double(values[j * 2], values[j * 2 + 1]);
+                }
+                current.primitives.add(new ShapePrimitive(state, new BezierSpline(splinePoints, tension), false, false));
                 break;
+            }
 
             case eDRAW_STRING:             // [2D-point][null-terminated chars]
-                skipValues(is, 2);
-                is.readString();
+                readValues(is, v, 2);
+                current.primitives.add(new StringPrimitive(state, v[0], v[1], is.readString()));
                 break;
 
-            case ePATH_CUBIC_BEZIER_CURVE:
-                skipValues(is, 6);
+            case eDRAW_BEZIER_CURVE: {     // [degree: N][2D-point1]...[2D-pointN+1]
+                int degree = is.readShort();
+                int values = (degree + 1) * 2;
+                current.primitives.add(new BezierCurvePrimitive(state, degree, readValues(is, new double[values], values)));
                 break;
+            }
 
-            case eDRAW_BEZIER_CURVE:       // [degree: N][2D-point1]...[2D-pointN+1]
-                int degree = is.readShort();
-                skipValues(is, (degree + 1) * 2);
+            case ePATH_START: {
+                readValues(is, v, 2);
+                boolean shape = is.readBoolean();
+                double startx = v[0];
+                double starty = v[1];
+                Path2D.Double path = new Path2D.Double();
+                path.moveTo(startx, starty);
+                while (is.moreDataAvailable()) {
+                    opcodeOffset = is.getAbsoluteReadPosition();
+                    opcode = is.readEnum(Opcode.class);
+                    if (opcode == Opcode.ePATH_LINE) {
+                        readValues(is, v, 2);
+                        path.lineTo(v[0], v[1]);
+                    } else if (opcode == Opcode.ePATH_QUADRATIC_BEZIER_CURVE) {
+                        readValues(is, v, 4);
+                        path.quadTo(v[0], v[1], v[2], v[3]);
+                    } else if (opcode == Opcode.ePATH_CUBIC_BEZIER_CURVE) {
+                        readValues(is, v, 6);
+                        path.curveTo(v[0], v[1], v[2], v[3], v[4], v[5]);
+                    } else {
+                        readNextOpcode = false;
+                        break;
+                    }
+                }
+                if (shape) {
+                    path.lineTo(startx, starty);
+                }
+                current.primitives.add(new ShapePrimitive(state, path, fill, true));
                 break;
+            }
 
-            case ePATH_START:
+            case ePATH_LINE:
                 skipValues(is, 2);
-                is.readBoolean();
+                break;
+            case ePATH_QUADRATIC_BEZIER_CURVE:
+                skipValues(is, 4);
+                break;
+            case ePATH_CUBIC_BEZIER_CURVE:
+                skipValues(is, 6);
                 break;
 
-            case eDEFAULT_VIEWPORT_OFFSET:
-                is.readLong();
+            case eDEFAULT_VIEWPORT:        // [left,bottom,width,height]
+                readValues(is, v, 4);
+                if (opcodeOffset == viewportOffset) {
+                    viewport = new Rectangle2D.Double(v[0], v[1], v[2], v[3]);
+                }
+                break;
+
+            case eDEFAULT_VIEWPORT_OFFSET: // [int64 absolute offset]
+                long offset = is.readLong();
+                if (opcodeOffset == 0) {
+                    viewportOffset = offset + 9;
+                }
                 break;
 
             default:
                 Log.log(LogLevel.WARNING, this, "Opcode " + opcode.toString() + " not supported yet");
-                return;
+                break parse;
             }
         }
-        Collections.sort(zLevels);
+        Rectangle2D.Double bounds = null;
+        for (RenderContext level : levels) {
+            level.primitives.trimToSize();
+            double[] primitiveBounds = getTransformedBounds(level.primitives);
+            for (int i = 0; i < level.primitives.size(); i++) {
+                int b = i * 4;
+                if (level.primitives.get(i) instanceof PointsPrimitive) {
+                    PointsPrimitive points = (PointsPrimitive)level.primitives.get(i);
+                    points.coordinates = Arrays.copyOf(points.coordinates, points.count * 2);
+                }
+                if (!Double.isNaN(primitiveBounds[b])) {
+                    bounds = addToBounds(bounds, primitiveBounds[b], primitiveBounds[b + 1], primitiveBounds[b + 2], primitiveBounds[b + 3]);
+                } else if (level.primitives.get(i) instanceof StringPrimitive) {
+                    // strings are not scaled: their extent is added in canvas coordinates
+                    StringPrimitive string = (StringPrimitive)level.primitives.get(i);
+                    Point2D position = string.state.transform.transform(new Point2D.Double(string.x, string.y), null);
+                    FontMetrics fontMetrics = BoundsExtractingGraphics2D.getInstance().getFontMetrics();
+                    bounds = addToBounds(bounds, position.getX(), position.getY(), position.getX() + fontMetrics.stringWidth(string.string), position.getY() + fontMetrics.getHeight());
+                }
+            }
+            if (level.primitives.size() >= cSPATIAL_INDEX_THRESHOLD) {
+                level.index = new UniformGridIndex(primitiveBounds, level.primitives.size());
+            }
+        }
+        Collections.sort(levels);
+        zLevels = levels;
+        this.bounds = viewport != null ? viewport : bounds;
+    }
+
+    /**
+     * @param bounds Bounds to enlarge (null if there are no bounds yet)
+     * @return Bounds enlarged to contain specified area
+     */
+    private static Rectangle2D.Double addToBounds(Rectangle2D.Double bounds, double minX, double minY, double maxX, double maxY) {
+        if (bounds == null) {
+            return new Rectangle2D.Double(minX, minY, maxX - minX, maxY - minY);
+        }
+        bounds.add(minX, minY);
+        bounds.add(maxX, maxY);
+        return bounds;
     }
 
     @Override
     public void paint(Graphics2D g, FastBufferedImage imageBuffer) {
-        BinaryInputStream is = new BinaryInputStream(this);
         Graphics2D g2d = (g instanceof BoundsExtractingGraphics2D) ? g : (Graphics2D)g.create();
         AffineTransform defaultTransform = g2d.getTransform();
+        Rectangle2D visibleArea = getVisibleArea(g2d, imageBuffer);
+        ArrayList<RenderContext> levels = zLevels;
 
-        for (RenderContext lvl : zLevels) {
-            if (lvl.commandCount > 0) {
-                is.reset(this);
-                is.skip(lvl.bufferOffset);
-                paintGeometry(g2d, imageBuffer, lvl, is, defaultTransform);
+        if (!(parallelRendering && visibleArea != null && paintParallel(g2d, imageBuffer, levels, defaultTransform, visibleArea))) {
+            for (RenderContext lvl : levels) {
+                if (lvl.primitives.size() > 0) {
+                    paintGeometry(g2d, imageBuffer, lvl, defaultTransform, visibleArea);
+                }
             }
         }
-        is.close();
+        if (g2d != g) {
+            g2d.dispose();
+        }
+    }
+
+    /**
+     * Parallel rendering is disabled by default: its speedup has not been measured on multi-core machines yet
+     * (on a single core, it only adds the overhead of compositing the off-screen layers).
+     *
+     * @param enabled Render Z-levels of large canvases in parallel using multiple threads?
+     */
+    public static void setParallelRendering(boolean enabled) {
+        parallelRendering = enabled;
+    }
+
+    /**
+     * @return Are Z-levels of large canvases rendered in parallel using multiple threads?
+     */
+    public static boolean isParallelRendering() {
+        return parallelRendering;
+    }
+
+    /**
+     * Paints Z-levels in parallel: consecutive Z-levels are grouped, every group is painted to a transparent
+     * off-screen layer by a task in the blit pool, and the layers are then composited in Z order.
+     *
+     * @param g Graphics object with default transformation
+     * @param imageBuffer Image buffer that graphics object paints to (optional)
+     * @param levels Z-levels to paint
+     * @param defaultTransform Transformation that canvas transformations are relative to
+     * @param visibleArea Visible area in canvas coordinates
+     * @return False if canvas is not suitable for parallel rendering (nothing was painted then)
+     */
+    private boolean paintParallel(Graphics2D g, FastBufferedImage imageBuffer, ArrayList<RenderContext> levels, final AffineTransform defaultTransform, final Rectangle2D visibleArea) {
+        // enough work in more than one Z-level?
+        ArrayList<RenderContext> nonEmptyLevels = new ArrayList<RenderContext>();
+        int primitiveCount = 0;
+        for (RenderContext level : levels) {
+            if (level.primitives.size() > 0) {
+                nonEmptyLevels.add(level);
+                primitiveCount += level.primitives.size();
+            }
+        }
+        if (nonEmptyLevels.size() < 2 || primitiveCount < cPARALLEL_RENDERING_THRESHOLD) {
+            return false;
+        }
+
+        // painting layers with source-over and compositing them with source-over is equivalent to painting directly - other composites are not
+        if (!(g.getComposite() instanceof AlphaComposite) || ((AlphaComposite)g.getComposite()).getRule() != AlphaComposite.SRC_OVER) {
+            return false;
+        }
+
+        // device area that layers cover
+        Shape clip = g.getClip();
+        Shape deviceClip = clip != null ? defaultTransform.createTransformedShape(clip) : null;
+        if (deviceClip != null && defaultTransform.getShearX() == 0 && defaultTransform.getShearY() == 0) {
+            // rectangular clip: remove rounding errors from transforming it back and forth
+            Rectangle2D bounds = deviceClip.getBounds2D();
+            int x = (int)Math.round(bounds.getMinX()), y = (int)Math.round(bounds.getMinY());
+            deviceClip = new Rectangle(x, y, (int)Math.round(bounds.getMaxX()) - x, (int)Math.round(bounds.getMaxY()) - y);
+        }
+        final Rectangle area = deviceClip != null ? deviceClip.getBounds() : imageBuffer.getBounds();
+        if (deviceClip != null && imageBuffer != null) {
+            Rectangle.intersect(area, imageBuffer.getBounds(), area);
+        }
+        if (area.isEmpty()) {
+            return true;
+        }
+        int maxLayers = (int)Math.min(Integer.MAX_VALUE, cMAX_LAYER_MEMORY / Layer.getMemory(area.width, area.height));
+        if (maxLayers < 2) {
+            return false;
+        }
+        final AffineTransform layerTransform = AffineTransform.getTranslateInstance(-area.x, -area.y);
+        layerTransform.concatenate(defaultTransform);
+        final Shape layerClip = deviceClip != null ? AffineTransform.getTranslateInstance(-area.x, -area.y).createTransformedShape(deviceClip) : null;
+        final RenderingHints hints = (RenderingHints)g.getRenderingHints().clone();
+        final Font font = g.getFont();
+        final Composite composite = g.getComposite();
+        final Paint paint = g.getPaint();
+        final Color background = g.getBackground();
+        final Stroke stroke = g.getStroke();
+        final boolean useLayerBuffer = imageBuffer != null;
+
+        // group consecutive Z-levels with similar numbers of primitives
+        int groupCount = Math.min(Math.min(nonEmptyLevels.size(), Blittable.getBlitPool().getParallelism() + 1), maxLayers);
+        ArrayList<Callable<Layer>> tasks = new ArrayList<Callable<Layer>>(groupCount);
+        int levelIndex = 0, painted = 0;
+        for (int i = 0; i < groupCount; i++) {
+            final ArrayList<RenderContext> group = new ArrayList<RenderContext>();
+            long groupEnd = (long)primitiveCount * (i + 1) / groupCount;
+            while (levelIndex < nonEmptyLevels.size() && (group.isEmpty() || painted < groupEnd) && nonEmptyLevels.size() - levelIndex > groupCount - i - 1) {
+                painted += nonEmptyLevels.get(levelIndex).primitives.size();
+                group.add(nonEmptyLevels.get(levelIndex));
+                levelIndex++;
+            }
+            if (i == groupCount - 1) {
+                group.addAll(nonEmptyLevels.subList(levelIndex, nonEmptyLevels.size()));
+            }
+            final Layer layer = obtainLayer(area.width, area.height);
+            tasks.add(new Callable<Layer>() {
+                @Override
+                public Layer call() {
+                    Arrays.fill(layer.getBuffer(), 0);
+                    Graphics2D layerGraphics = layer.createGraphics();
+                    layerGraphics.setRenderingHints(hints);
+                    layerGraphics.setFont(font);
+                    layerGraphics.setComposite(composite);
+                    layerGraphics.setPaint(paint);
+                    layerGraphics.setBackground(background);
+                    layerGraphics.setStroke(stroke);
+                    if (layerClip != null) {
+                        layerGraphics.setClip(layerClip);
+                    }
+                    layerGraphics.setTransform(layerTransform);
+                    for (RenderContext lvl : group) {
+                        paintGeometry(layerGraphics, useLayerBuffer ? layer : null, lvl, layerTransform, visibleArea);
+                    }
+                    layerGraphics.dispose();
+                    return layer;
+                }
+            });
+        }
+
+        // composite layers in Z order (alpha of composite was already applied when painting layers)
+        g.setTransform(AffineTransform.getTranslateInstance(area.x, area.y));
+        g.setComposite(AlphaComposite.SrcOver);
+        for (Future<Layer> result : Blittable.getBlitPool().invokeAll(tasks)) {
+            try {
+                Layer layer = result.get();
+                layer.paint(g, null);
+                releaseLayer(layer);
+            } catch (Exception e) {
+                Log.log(LogLevel.WARNING, this, "Rendering Z-levels failed: ", e);
+            }
+        }
+        g.setComposite(composite);
+        g.setTransform(defaultTransform);
+        return true;
+    }
+
+    /**
+     * @return Unused off-screen layer with the specified size (pixels are not cleared)
+     */
+    private static Layer obtainLayer(int width, int height) {
+        synchronized (unusedLayers) {
+            Layer layer = unusedLayers.peekFirst();
+            if (layer != null && (layer.getWidth() != width || layer.getHeight() != height)) {
+                unusedLayers.clear(); // view size changed
+                unusedLayerMemory = 0;
+            } else if (layer != null) {
+                unusedLayers.removeFirst();
+                unusedLayerMemory -= layer.getMemory();
+                return layer;
+            }
+        }
+        return new Layer(width, height);
+    }
+
+    /**
+     * @param layer Off-screen layer that is no longer used
+     */
+    private static void releaseLayer(Layer layer) {
+        synchronized (unusedLayers) {
+            Layer other = unusedLayers.peekFirst();
+            if ((other == null || (other.getWidth() == layer.getWidth() && other.getHeight() == layer.getHeight())) &&
+                    unusedLayerMemory + layer.getMemory() <= cMAX_LAYER_MEMORY) {
+                unusedLayers.add(layer);
+                unusedLayerMemory += layer.getMemory();
+            }
+        }
+    }
+
+    /**
+     * Transparent off-screen layer for parallel rendering
+     */
+    private static class Layer extends FastBufferedImage {
+
+        Layer(int width, int height) {
+            wrapped = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+        }
+
+        /**
+         * @return Size of layer's pixel buffer in bytes
+         */
+        long getMemory() {
+            return getMemory(getWidth(), getHeight());
+        }
+
+        /**
+         * @return Size of pixel buffer in bytes of a layer with the specified size
+         */
+        static long getMemory(int width, int height) {
+            return 4L * width * height;
+        }
+
+        /**
+         * @return New graphics object for drawing to this layer
+         */
+        Graphics2D createGraphics() {
+            return wrapped.createGraphics();
+        }
+
+        @Override
+        protected void blitLineToRGB(int[] destBuffer, int destOffset, int srcX, int srcY, int srcOffset, int width) {
+            System.arraycopy(getBuffer(), srcOffset, destBuffer, destOffset, width);
+        }
     }
 
     public static class ScalingFactors {
@@ -348,422 +1253,103 @@ public class Canvas extends MemoryBuffer implements PaintablePortData {
         return result;
     }
 
-    public void paintGeometry(Graphics2D g, FastBufferedImage imageBuffer, RenderContext lvl, BinaryInputStream is, AffineTransform defaultTransform) {
-        double[] v = new double[1000];
-        boolean fill = lvl.fill;
-        final boolean drawPrettyPoints = g.getRenderingHint(RenderingHints.KEY_RENDERING) == RenderingHints.VALUE_RENDER_QUALITY;
-        Color edgeColor = lvl.edgeColor;
-        Color fillColor = lvl.fillColor;
-        g.setColor(edgeColor);
-        g.setTransform(defaultTransform);
-        g.transform(lvl.at);
-
-        // Shapes
-        final Line2D.Double line = new Line2D.Double();
-        final Ellipse2D.Double ellipse = new Ellipse2D.Double();
-        final Rectangle2D.Double rect = new Rectangle2D.Double();
-        final Rectangle awtRectangle = new Rectangle();
-
-        // Helper objects for line drawing
-        final Point2D.Double p1 = new Point2D.Double();
-        final Point2D.Double p2 = new Point2D.Double();
-        final Point2D.Double p1t = new Point2D.Double();
-        final Point2D.Double p2t = new Point2D.Double();
-
-        // Arrow head
-        final Path2D.Double arrowHead = new Path2D.Double();
-        arrowHead.moveTo(0.0, 0.0);
-        arrowHead.lineTo(-2.0, 1.0);
-        arrowHead.lineTo(-2.0, -1.0);
-        arrowHead.lineTo(0.0, 0.0);
-
-        ScalingFactors scaling = calculateScalingFactorsAndUpdateStrokeWidth(g);
-
-        boolean readNextOpcode = true;
-        Opcode opcode = null;
-        for (int i = 0; i < lvl.commandCount; i++) {
-
-            if (readNextOpcode) {
-                opcode = is.readEnum(Opcode.class);
-            } else {
-                readNextOpcode = true;
-            }
-            switch (opcode) {
-            case eSET_TRANSFORMATION:
-                g.setTransform(defaultTransform);
-                g.transform(new AffineTransform(readValues(is, v, 6)));
-                scaling = calculateScalingFactorsAndUpdateStrokeWidth(g);
-                break;
-            case eTRANSFORM:
-                g.transform(new AffineTransform(readValues(is, v, 6)));
-                break;
-            case eTRANSLATE:      // [2D-vector]
-                readValues(is, v, 2);
-                g.translate(v[0], v[1]);
-                break;
-            case eROTATE:         // [yaw]
-                readValues(is, v, 1);
-                g.rotate(v[0]);
-                break;
-            case eSCALE:          // [2D-vector]
-                readValues(is, v, 2);
-                g.scale(v[0], v[1]);
-                scaling = calculateScalingFactorsAndUpdateStrokeWidth(g);
-                break;
-            case eRESET_TRANSFORMATION:
-                g.setTransform(defaultTransform);
-                scaling = calculateScalingFactorsAndUpdateStrokeWidth(g);
-                break;
-
-            case eSET_COLOR:         // [RGB: 3 bytes]
-                edgeColor = new Color(is.readByte() & 0xFF, is.readByte() & 0xFF, is.readByte() & 0xFF, edgeColor.getAlpha());
-                fillColor = edgeColor;
-                g.setColor(edgeColor);
-                break;
-            case eSET_EDGE_COLOR:    // [RGB: 3 bytes]
-                edgeColor = new Color(is.readByte() & 0xFF, is.readByte() & 0xFF, is.readByte() & 0xFF, edgeColor.getAlpha());
-                g.setColor(edgeColor);
-                break;
-            case eSET_FILL_COLOR:    // [RGB: 3 bytes]
-                fillColor = new Color(is.readByte() & 0xFF, is.readByte() & 0xFF, is.readByte() & 0xFF, fillColor.getAlpha());
-                break;
-            case eSET_ALPHA:
-                int alpha = is.readByte() & 0xFF;
-                if (alpha != edgeColor.getAlpha()) {
-                    edgeColor = new Color(edgeColor.getRed(), edgeColor.getGreen(), edgeColor.getBlue(), alpha);
-                    g.setColor(edgeColor);
-                }
-                if (alpha != fillColor.getAlpha()) {
-                    fillColor = new Color(fillColor.getRed(), fillColor.getGreen(), fillColor.getBlue(), alpha);
-                }
-                break;
-            case eSET_FILL:          // [bool]
-                fill = is.readBoolean();
-                break;
-            case eSET_Z:             // [value]
-                readValues(is, v, 1);
-                break;
-            case eSET_EXTRUSION:
-                readValues(is, v, 1);
-                break;
-
-            case eDRAW_POINT:              // [2D-vector]
-                readValues(is, v, 2);
-                if (imageBuffer != null) {
-                    p1.x = v[0];
-                    p1.y = v[1];
-                    if (g.getClip() == null || g.getClip().contains(p1)) {
-                        g.getTransform().transform(p1, p2);
-                        int x = (int)p2.x;
-                        int y = (int)p2.y;
-                        if (x >= 0 && x < imageBuffer.getWidth() && y >= 0 && y < imageBuffer.getHeight()) {
-                            imageBuffer.setPixel(x, y, g.getColor().getRGB());
-                        }
-                    }
-                } else if (drawPrettyPoints) {
-                    ellipse.x = v[0] - 0.5 / scaling.x;
-                    ellipse.y = v[1] - 0.5 / scaling.y;
-                    ellipse.width = 1 / scaling.x;
-                    ellipse.height = 1 / scaling.y;
-                    g.fill(ellipse);
-                } else {
-                    line.x1 = v[0];
-                    line.x2 = v[0];
-                    line.y1 = v[1];
-                    line.y2 = v[1];
-                    g.draw(line);
-                }
-                break;
-
-            case eDRAW_LINE:              // [2D-point][2D-vector]
-                readValues(is, v, 4);
-                double x1 = v[0];
-                double y1 = v[1];
-                double vecx = v[2];
-                double vecy = v[3];
-                AffineTransform at = g.getTransform();
-
-                if (!(g instanceof BoundsExtractingGraphics2D)) {
-                    Rectangle r = g.getClipBounds();
-                    if (r == null && imageBuffer != null) {
-                        p1.x = 0;
-                        p1.y = 0;
-                        p2.x = imageBuffer.getWidth();
-                        p2.y = imageBuffer.getHeight();
-                        try {
-                            r = new Rectangle();
-                            at.inverseTransform(p1, p1t);
-                            at.inverseTransform(p2, p2t);
-                            r.x = (int)Math.round(Math.min(p1t.x, p2t.x)) - 1;
-                            r.y = (int)Math.round(Math.min(p1t.y, p2t.y)) - 1;
-                            r.width = (int)Math.round(Math.abs(p1t.x - p2t.x)) + 2;
-                            r.height = (int)Math.round(Math.abs(p1t.y - p2t.y)) + 2;
-                        } catch (Exception e) {
-                            Log.log(LogLevel.ERROR, e);
-                        }
-                    }
-                    while (r != null) {
-                        p1.x = x1 - vecx;
-                        p1.y = y1 - vecy;
-                        p2.x = x1 + vecx;
-                        p2.y = y1 + vecy;
-
-                        at.transform(p1, p1t);
-                        at.transform(p2, p2t);
-
-                        if (p1.x < r.getMinX() && p2.x > r.getMaxX() || p2.x < r.getMinX() && p1.x > r.getMaxX() ||
-                                p1.y < r.getMinY() && p2.y > r.getMaxY() || p2.y < r.getMinY() && p1.y > r.getMaxY()) {
-                            break;
-                        }
-
-                        vecx *= 8;
-                        vecy *= 8;
-                    }
-                    line.setLine(p1, p2);
-                    g.draw(line);
-                }
-
-                break;
-
-            case eDRAW_LINE_SEGMENT:      // [2D-point][2D-point]
-                readValues(is, v, 4);
-                line.x1 = v[0];
-                line.y1 = v[1];
-                line.x2 = v[2];
-                line.y2 = v[3];
-                g.draw(line);
-                break;
-
-            case eDRAW_LINE_STRIP: {      // [number of values][2D-vector1]...[2D-vectorN]
-                int points = is.readShort();
-                Path2D.Double path = new Path2D.Double(Path2D.WIND_NON_ZERO, points);
-                if (points * 2 > v.length) {
-                    Log.log(LogLevel.WARNING, this, "More than " + (v.length / 2) + " points not supported");
-                    return;
-                }
-                readValues(is, v, points * 2);
-                synchronized (path) { // maybe this speeds synchronized calls up?
-                    path.moveTo(v[0], v[1]);
-                    for (int j = 1; j < points; j++) {
-                        path.lineTo(v[j * 2], v[j * 2 + 1]);
-                    }
+    /**
+     * Paints display list of Z-level
+     *
+     * @param g Graphics object to paint to
+     * @param imageBuffer Image buffer that graphics object paints to (optional - allows painting some primitives directly to buffer)
+     * @param lvl Z-level
+     * @param defaultTransform Transformation that canvas transformations are relative to
+     * @param visibleArea Visible area in canvas coordinates (primitives outside are not painted - null paints all primitives)
+     */
+    void paintGeometry(Graphics2D g, FastBufferedImage imageBuffer, RenderContext lvl, AffineTransform defaultTransform, Rectangle2D visibleArea) {
+        PaintContext context = new PaintContext(g, imageBuffer, defaultTransform);
+        int[] visible = (visibleArea != null && lvl.index != null) ? lvl.index.query(visibleArea.getMinX(), visibleArea.getMinY(), visibleArea.getMaxX(), visibleArea.getMaxY()) : null;
+        if (visible == null) {
+            for (Primitive primitive : lvl.primitives) {
+                if (primitive.state != context.state) {
+                    context.setState(primitive.state);
                 }
-                g.draw(path);
-                break;
+                primitive.paint(context);
             }
-            case eDRAW_ARROW:      // [bool][2D-point][2D-point]
-                boolean undirected = is.readBoolean();
-                readValues(is, v, 4);
-                line.x1 = v[0];
-                line.y1 = v[1];
-                line.x2 = v[2];
-                line.y2 = v[3];
-                g.draw(line);
-
-                AffineTransform currentTransform = g.getTransform();
-
-                double angle = Math.atan2(line.y2 - line.y1, line.x2 - line.x1);
-
-                g.translate(line.x2, line.y2);
-                g.rotate(angle);
-                g.scale(cARROW_HEAD_SIZE / scaling.x, cARROW_HEAD_SIZE / scaling.y);
-                g.fill(arrowHead);
-
-                if (undirected) {
-                    g.setTransform(currentTransform);
-                    g.translate(line.x1, line.y1);
-                    g.rotate(angle + Math.PI);
-                    g.scale(cARROW_HEAD_SIZE / scaling.x, cARROW_HEAD_SIZE / scaling.y);
-                    g.fill(arrowHead);
-                }
-
-                g.setTransform(currentTransform);
-                break;
-
-            case eDRAW_BOX:             // [2D-point][width][height]
-                readValues(is, v, 4);
-                //if (imageBuffer != null && g.getClip() == null && (!GraphicsUtil.isRotation(g.getTransform()))) {  // this would be possible, however, we get double-pixel-lines in grid maps (due to rounding errors)
-                if (imageBuffer != null && g.getClip() == null && (!GraphicsUtil.isRotation(g.getTransform())) && fill && edgeColor.equals(fillColor)) {
-                    p1.x = v[0];
-                    p1.y = v[1];
-                    int width = (int)Math.round(v[2] * scaling.x) + 1; /*Math.max(1, (int)Math.round(v[2] * scaling.x))*/;
-                    int height = (int)Math.round(v[3] * scaling.y) + 1; /*Math.max(1, (int)Math.round(v[3] * scaling.y))*/;
-                    g.getTransform().transform(p1, p2);
-                    awtRectangle.x = (int)Math.round(p2.x);
-                    awtRectangle.y = ((int)Math.round(p2.y)) - height;
-                    awtRectangle.width = width;
-                    awtRectangle.height = height;
-                    Rectangle awtRectangle2 = imageBuffer.getBounds().intersection(awtRectangle);
-
-                    // fill
-                    if (fill) {
-                        int destPos = awtRectangle2.y * imageBuffer.getWidth() + awtRectangle2.x;
-                        for (int y = 1; y < awtRectangle2.height - 1; y++) {
-                            destPos += imageBuffer.getWidth();
-                            Arrays.fill(imageBuffer.getBuffer(), destPos, destPos + awtRectangle2.width, fillColor.getRGB());
-                        }
-                    }
-
-                    // draw border
-                    int rgb = g.getColor().getRGB();
-                    int destPos = awtRectangle2.y * imageBuffer.getWidth() + awtRectangle2.x;
-                    Arrays.fill(imageBuffer.getBuffer(), destPos, destPos + awtRectangle2.width, g.getColor().getRGB());
-                    for (int y = 1; y < awtRectangle2.height - 1; y++) {
-                        destPos += imageBuffer.getWidth();
-                        imageBuffer.getBuffer()[destPos] = g.getColor().getRGB();
-                        imageBuffer.getBuffer()[destPos + awtRectangle2.width] = g.getColor().getRGB();
-                    }
-                    destPos += imageBuffer.getWidth();
-                    Arrays.fill(imageBuffer.getBuffer(), destPos, destPos + awtRectangle2.width, g.getColor().getRGB());
-
-                } else {
-                    rect.x = v[0];
-                    rect.y = v[1];
-                    rect.width = v[2];
-                    rect.height = v[3];
-                    if (fill) {
-                        g.setColor(fillColor);
-                        g.fill(rect);
-                        g.setColor(edgeColor);
-                    }
-                    g.draw(rect);
-                }
-                break;
-
-            case eDRAW_ELLIPSOID:               // [2D-point][width][height]
-                readValues(is, v, 4);
-                ellipse.x = v[0];
-                ellipse.y = v[1];
-                ellipse.width = v[2];
-                ellipse.height = v[3];
-                if (fill) {
-                    g.setColor(fillColor);
-                    g.fill(ellipse);
-                    g.setColor(edgeColor);
-                }
-                g.draw(ellipse);
-                break;
-
-            case eDRAW_POLYGON:            // [number of values][2D-vector1]...[2D-vectorN]
-                int points = is.readShort();
-                Path2D.Double path = new Path2D.Double(Path2D.WIND_NON_ZERO, points + 1);
-                if (points * 2 > v.length) {
-                    Log.log(LogLevel.WARNING, this, "More than " + (v.length / 2) + " points not supported");
-                    return;
-                }
-                readValues(is, v, points * 2);
-                synchronized (path) { // maybe this speeds synchronized calls up?
-                    path.moveTo(v[0], v[1]);
-                    for (int j = 1; j < points; j++) {
-                        path.lineTo(v[j * 2], v[j * 2 + 1]);
-                    }
-                    path.lineTo(v[0], v[1]);
-                }
-                if (fill) {
-                    g.setColor(fillColor);
-                    g.fill(path);
-                    g.setColor(edgeColor);
-                }
-                g.draw(path);
-
-                break;
-
-            case eDRAW_SPLINE:             // [number of values][2D-vector1]...[2D-vectorN]  (bezier spline)
-                float tension = is.readFloat();
-                points = is.readShort();
-                if (points * 2 > v.length) {
-                    Log.log(LogLevel.WARNING, this, "More than " + (v.length / 2) + " points not supported");
-                    return;
-                }
-                readValues(is, v, points * 2);
-                Point2D.Double[] splinePoints = new Point2D.Double[points];
-                for (int j = 0; j < points; j++) {
-                    splinePoints[j] = new Point2D.Double(v[j * 2], v[j * 2 + 1]);
-                }
-                BezierSpline spline = new BezierSpline(splinePoints, tension);
-                g.draw(spline);
-                break;
-
-            case eDRAW_STRING:             // [2D-point][null-terminated chars]
-                readValues(is, v, 2);
-                String s = is.readString();
-                // get current transformation
-                AffineTransform tmp = g.getTransform();
-                tmp.transform(new Point2D.Double(v[0], v[1]), p1t);
-                // create a transformation without a rotation
-                AffineTransform nonRotated = new AffineTransform();
-                nonRotated.translate(p1t.x, p1t.y);
-                g.setTransform(nonRotated);
-                g.drawString(s, 0, 0);
-                // reset transform
-                g.setTransform(tmp);
-                break;
-
-            case eDRAW_BEZIER_CURVE: // [degree: N][2D-point1]...[2D-pointN+1]
-                short degree = is.readShort();
-                points = degree + 1;
-                if (points * 2 > v.length) {
-                    Log.log(LogLevel.WARNING, this, "Degree greater than " + (v.length / 2 - 1) + " points not supported");
-                    return;
+        } else {
+            for (int i : visible) {
+                Primitive primitive = lvl.primitives.get(i);
+                if (primitive.state != context.state) {
+                    context.setState(primitive.state);
                 }
-                readValues(is, v, points * 2);
-                double twist_threshold = 1.0 / Math.sqrt(Math.pow(scaling.x, 2) + Math.pow(scaling.y, 2));
-                drawBezierCurve(g, degree, v, twist_threshold);
-                break;
-
-            case ePATH_START:
-                path = new Path2D.Double();
-
-                readValues(is, v, 2);
-                boolean shape = is.readBoolean();
-                double startx = v[0];
-                double starty = v[1];
-                path.moveTo(startx, starty);
-
-                synchronized (path) {
-                    while (is.moreDataAvailable()) {
-                        opcode = is.readEnum(Opcode.class);
-                        if (opcode == Opcode.ePATH_LINE) {
-                            readValues(is, v, 2);
-                            path.lineTo(v[0], v[1]);
-                        } else if (opcode == Opcode.ePATH_QUADRATIC_BEZIER_CURVE) {
-                            readValues(is, v, 4);
-                            path.quadTo(v[0], v[1], v[2], v[3]);
-                        } else if (opcode == Opcode.ePATH_CUBIC_BEZIER_CURVE) {
-                            readValues(is, v, 6);
-                            path.curveTo(v[0], v[1], v[2], v[3], v[4], v[5]);
-                        } else {
-                            readNextOpcode = false;
-                            break;
-                        }
-                    }
-
-                    if (shape) {
-                        path.lineTo(startx, starty);
-                    }
-
-                    g.draw(path);
-                    if (fill) {
-                        g.setColor(fillColor);
-                        g.fill(path);
-                        g.setColor(edgeColor);
-                    }
-                }
-                break;
-
-            case eDEFAULT_VIEWPORT:
-                readValues(is, v, 4);
-                break;
+                primitive.paint(context);
+            }
+        }
+    }
 
-            case eDEFAULT_VIEWPORT_OFFSET:
-                is.readLong();
-                break;
+    /**
+     * @param g Graphics object with default transformation
+     * @param imageBuffer Image buffer that graphics object paints to (optional)
+     * @return Area visible in graphics object in canvas coordinates - enlarged by culling margin (null if unknown)
+     */
+    private static Rectangle2D getVisibleArea(Graphics2D g, FastBufferedImage imageBuffer) {
+        if (g instanceof BoundsExtractingGraphics2D) {
+            return null;
+        }
+        AffineTransform transform = g.getTransform();
+        Rectangle2D area = g.getClipBounds();
+        if (area == null) {
+            if (imageBuffer == null) {
+                return null;
+            }
+            try {
+                area = transform.createInverse().createTransformedShape(imageBuffer.getBounds()).getBounds2D();
+            } catch (NoninvertibleTransformException e) {
+                return null;
+            }
+        }
+        double scale = Math.min(Math.hypot(transform.getScaleX(), transform.getShearY()), Math.hypot(transform.getShearX(), transform.getScaleY()));
+        if (!(scale > 0)) {
+            return null;
+        }
+        double margin = cCULLING_MARGIN / scale;
+        return new Rectangle2D.Double(area.getX() - margin, area.getY() - margin, area.getWidth() + 2 * margin, area.getHeight() + 2 * margin);
+    }
 
-            default:
-                Log.log(LogLevel.WARNING, this, "Opcode " + opcode.toString() + " not supported yet");
-                return;
+    /**
+     * @param primitives Primitives
+     * @return Bounds of primitives in canvas coordinates: minX, minY, maxX, maxY for every primitive (minX is NaN for primitives without finite bounds)
+     */
+    private static double[] getTransformedBounds(ArrayList<Primitive> primitives) {
+        double[] result = new double[primitives.size() * 4];
+        Rectangle2D.Double bounds = new Rectangle2D.Double();
+        double[] corners = new double[8];
+        for (int i = 0; i < primitives.size(); i++) {
+            Primitive primitive = primitives.get(i);
+            int b = i * 4;
+            if (!primitive.getBounds(bounds)) {
+                result[b] = Double.NaN;
+                continue;
+            }
+            corners[0] = bounds.x;
+            corners[1] = bounds.y;
+            corners[2] = bounds.x + bounds.width;
+            corners[3] = bounds.y;
+            corners[4] = bounds.x;
+            corners[5] = bounds.y + bounds.height;
+            corners[6] = bounds.x + bounds.width;
+            corners[7] = bounds.y + bounds.height;
+            primitive.state.transform.transform(corners, 0, corners, 0, 4);
+            double minX = Math.min(Math.min(corners[0], corners[2]), Math.min(corners[4], corners[6]));
+            double minY = Math.min(Math.min(corners[1], corners[3]), Math.min(corners[5], corners[7]));
+            double maxX = Math.max(Math.max(corners[0], corners[2]), Math.max(corners[4], corners[6]));
+            double maxY = Math.max(Math.max(corners[1], corners[3]), Math.max(corners[5], corners[7]));
+            if (Double.isInfinite(maxX - minX) || Double.isInfinite(maxY - minY) || Double.isNaN(maxX - minX + maxY - minY)) {
+                result[b] = Double.NaN;
+            } else {
+                result[b] = minX;
+                result[b + 1] = minY;
+                result[b + 2] = maxX;
+                result[b + 3] = maxY;
             }
         }
+        return result;
     }
 
     private void skipValues(BinaryInputStream is, int valueCount) {
@@ -836,20 +1422,11 @@ public class Canvas extends MemoryBuffer implements PaintablePortData {
 
     @Override
     public Rectangle2D getBounds() {
-        if (getSize() > 9) {
-            long offset = getBuffer().getByte(0) == Opcode.eDEFAULT_VIEWPORT_OFFSET.ordinal() ? (getBuffer().getLong(1) + 9) : 0;
-            if (getBuffer().getByte((int)offset) == Opcode.eDEFAULT_VIEWPORT.ordinal()) {
-                double[] v = new double[4];
-                BinaryInputStream stream = new BinaryInputStream(this);
-                stream.skip((int)offset + 1);
-                readValues(stream, v, 4);
-                return new Rectangle2D.Double(v[0], v[1], v[2], v[3]);
-            }
-        }
-        return BoundsExtractingGraphics2D.getBounds(this);
+        Rectangle2D bounds = this.bounds;
+        return bounds == null ? null : (Rectangle2D)bounds.clone();
     }
 
-    private void drawBezierCurve(Graphics2D g, int degree, double[] v, double twist_threshold) {
+    private static void drawBezierCurve(Graphics2D g, int degree, double[] v, double twist_threshold) {
         int points = degree + 1;
         int values = 2 * points;
 
@@ -908,8 +1485,13 @@ public class Canvas extends MemoryBuffer implements PaintablePortData {
 
     @Override
     public void copyFrom(MemoryBuffer source) {
+        if (getBuffer().getBuffer().capacity() < source.getSize()) {
+            // reserve capacity of size class - so that slightly larger canvases do not cause reallocation again
+            setSize(BufferPool.getSizeClassCapacity(source.getSize()));
+            clear();
+        }
         super.copyFrom(source);
-        extractZLevels();
+        compileDisplayList();
     }
 
     @Override
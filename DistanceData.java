@@ -45,6 +45,7 @@ import org.finroc.plugins.data_types.Pose3D;
 import org.finroc.plugins.data_types.Time;
 import org.finroc.plugins.data_types.util.BoundsExtractingGraphics2D;
 import org.finroc.plugins.data_types.util.FastBufferedImage;
+import org.finroc.plugins.data_types.util.PayloadBuffer;
 import org.rrlib.logging.Log;
 import org.rrlib.logging.LogLevel;
 import org.rrlib.serialization.ArrayBuffer;
@@ -302,7 +303,7 @@ public class DistanceData implements PaintablePortData, PointList, ArrayBuffer {
     private DimensionImpl[] dimensions = null;
 
     /** Data Buffer */
-    private MemoryBuffer data = new MemoryBuffer(false);
+    private PayloadBuffer data = new PayloadBuffer();
     private MemoryBuffer extraData = new MemoryBuffer(false);
 
     /**
@@ -406,7 +407,7 @@ public class DistanceData implements PaintablePortData, PointList, ArrayBuffer {
         }
         if (formatInfo.isPlanar) {
             for (int i = 1; i < channels.length; i++) {
-                channels[i].setOffset(formatInfo.numberOfBytesPerValue * dimension);
+                channels[i].setOffset(i * formatInfo.numberOfBytesPerValue * dimension);
             }
         }
 
@@ -709,7 +710,7 @@ public class DistanceData implements PaintablePortData, PointList, ArrayBuffer {
 
     @Override
     public ByteBuffer getByteBuffer() {
-        return data.getBuffer().getBuffer();
+        return data.getSharedBuffer();
     }
 
     @Override
@@ -21,30 +21,56 @@
 //----------------------------------------------------------------------
 package org.finroc.plugins.data_types;
 
-import java.awt.Color;
+import java.awt.Dimension;
 import java.awt.Graphics2D;
-import java.awt.Point;
 import java.awt.Rectangle;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
-import java.awt.image.ColorModel;
-import java.io.ByteArrayInputStream;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.IntBuffer;
-
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+
+import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
 
 import org.finroc.plugins.blackboard.BlackboardPlugin;
 import org.finroc.plugins.data_types.Blittable;
 import org.finroc.plugins.data_types.HasBlittable;
 import org.finroc.plugins.data_types.PaintablePortData;
+import org.finroc.plugins.data_types.util.AsyncImageDecoder;
+import org.finroc.plugins.data_types.util.BufferPool;
+import org.finroc.plugins.data_types.util.CompressedImageDecoder;
 import org.finroc.plugins.data_types.util.FastBufferedImage;
+import org.finroc.plugins.data_types.util.IntensityMapper;
+import org.finroc.plugins.data_types.util.IntensityWindow;
+import org.finroc.plugins.data_types.util.LZ4Codec;
+import org.finroc.plugins.data_types.util.PayloadBuffer;
+import org.finroc.plugins.data_types.util.PixelConverter;
+import org.finroc.plugins.data_types.util.YUVConverter;
 import org.rrlib.logging.Log;
 import org.rrlib.logging.LogLevel;
 import org.rrlib.serialization.ArrayBuffer;
 import org.rrlib.serialization.BinaryInputStream;
 import org.rrlib.serialization.BinaryOutputStream;
-import org.rrlib.serialization.MemoryBuffer;
 import org.rrlib.serialization.PortDataListImpl;
 import org.rrlib.serialization.compression.Compressible;
 import org.rrlib.serialization.compression.DataCompressionAlgorithm;
@@ -61,6 +87,22 @@ public class Image implements HasBlittable, PaintablePortData, Compressible, Cop
 
     public static class ImageList extends PortDataListImpl<Image> implements HasBlittable, PaintablePortData {
 
+        /** How images in lists are painted */
+        public enum Layout {
+
+            /** Only first image */
+            FIRST,
+
+            /** All images next to each other (e.g. stereo pairs) */
+            SIDE_BY_SIDE,
+
+            /** All images in a (roughly square) grid */
+            GRID
+        }
+
+        /** How images in lists are painted */
+        private static volatile Layout layout = Layout.GRID;
+
         public ImageList() {
             super(Image.TYPE);
         }
@@ -72,14 +114,95 @@ public class Image implements HasBlittable, PaintablePortData, Compressible, Cop
 
         @Override
         public Rectangle2D getBounds() {
-            return size() > 0 ? get(0).getBounds() : null;
+            if (size() == 0) {
+                return null;
+            }
+            if (layout == Layout.FIRST || size() == 1) {
+                return get(0).getBounds();
+            }
+            Dimension cell = getCellSize();
+            int columns = getColumns();
+            int rows = (size() + columns - 1) / columns;
+            return new Rectangle2D.Double(0, 0, columns * cell.width, rows * cell.height);
         }
 
         @Override
         public void paint(Graphics2D g, FastBufferedImage imageBuffer) {
-            if (size() > 0) {
+            if (size() == 0) {
+                return;
+            }
+            if (layout == Layout.FIRST || size() == 1) {
                 get(0).paint(g, imageBuffer);
+                return;
+            }
+
+            // convert (or wrap) all images concurrently - then draw them
+            final ArrayList<Image> images = new ArrayList<Image>(size());
+            for (int i = 0; i < size(); i++) {
+                images.add(get(i));
+            }
+            if (Blittable.isParallelBlitting()) {
+                ArrayList<Callable<BufferedImage>> tasks = new ArrayList<Callable<BufferedImage>>(images.size());
+                for (final Image image : images) {
+                    tasks.add(new Callable<BufferedImage>() {
+                        @Override
+                        public BufferedImage call() {
+                            return image.getPaintImage(true);
+                        }
+                    });
+                }
+                for (Future<BufferedImage> result : Blittable.getBlitPool().invokeAll(tasks)) {
+                    try {
+                        result.get();
+                    } catch (Exception e) {
+                        Log.log(LogLevel.WARNING, this, "Converting image failed: ", e);
+                    }
+                }
+            }
+            Dimension cell = getCellSize();
+            int columns = getColumns();
+            for (int i = 0; i < images.size(); i++) {
+                Rectangle2D bounds = images.get(i).getBounds();
+                double x = (i % columns) * cell.width - bounds.getX();
+                double y = (i / columns) * cell.height - bounds.getY();
+                g.translate(x, y);
+                images.get(i).paint(g, imageBuffer);
+                g.translate(-x, -y);
+            }
+        }
+
+        /**
+         * @param layout How images in lists are painted
+         */
+        public static void setLayout(Layout layout) {
+            ImageList.layout = layout;
+        }
+
+        /**
+         * @return How images in lists are painted
+         */
+        public static Layout getLayout() {
+            return layout;
+        }
+
+        /**
+         * @return Number of columns in current layout
+         */
+        private int getColumns() {
+            return layout == Layout.SIDE_BY_SIDE ? size() : (int)Math.ceil(Math.sqrt(size()));
+        }
+
+        /**
+         * @return Size of a grid cell (large enough for every image)
+         */
+        private Dimension getCellSize() {
+            Dimension result = new Dimension();
+            for (int i = 0; i < size(); i++) {
+                Rectangle2D bounds = get(i).getBounds();
+                result.width = Math.max(result.width, (int)Math.ceil(bounds.getWidth()));
+                result.height = Math.max(result.height, (int)Math.ceil(bounds.getHeight()));
             }
+            return result;
         }
 
         @Override
@@ -100,9 +223,10 @@ public class Image implements HasBlittable, PaintablePortData, Compressible, Cop
     static {
         DataCompressionAlgorithm.register(Image.class, "jpeg", false);
         DataCompressionAlgorithm.register(Image.class, "png", false);
+        DataCompressionAlgorithm.register(Image.class, "lz4", false);
     }
 
-    enum Format {
+    public enum Format {
         MONO8,
         MONO16,
         MONO32_FLOAT,
@@ -136,16 +260,16 @@ public class Image implements HasBlittable, PaintablePortData, Compressible, Cop
         Channel.create(AttributeType.UNSIGNED_BYTE, 0, 4, "R", "G", "B"), // RGB32,
         Channel.create(AttributeType.UNSIGNED_BYTE, 0, 4, "B", "G", "R"), // BGR32,
         Channel.create(AttributeType.UNSIGNED_BYTE, 0, 1, "Y"), // YUV420P, (less U and V values than Y values)
-        new Channel[0], // YUV411, (unsupported)
+        new Channel[0], // YUV411, (packed U Y Y V Y Y - no regular channel layout)
         Channel.create(AttributeType.UNSIGNED_BYTE, 0, 2, "Y"), // YUV422, (less U and V values than Y values)
-        new Channel[0], // UYVY422, (unsupported)
-        new Channel[0], // YUV444, (unsupported)
-        new Channel[0], // BAYER_RGGB, (unsupported)
-        new Channel[0], // BAYER_GBRG, (unsupported)
-        new Channel[0], // BAYER_GRBG, (unsupported)
-        new Channel[0], // BAYER_BGGR, (unsupported)
-        new Channel[0], // HSV, (unsupported)
-        new Channel[0], // HLS, (unsupported)
+        Channel.create(AttributeType.UNSIGNED_BYTE, 1, 2, "Y"), // UYVY422, (less U and V values than Y values)
+        Channel.create(AttributeType.UNSIGNED_BYTE, 0, 3, "Y", "U", "V"), // YUV444,
+        Channel.create(AttributeType.UNSIGNED_BYTE, 0, 1, "Raw"), // BAYER_RGGB,
+        Channel.create(AttributeType.UNSIGNED_BYTE, 0, 1, "Raw"), // BAYER_GBRG,
+        Channel.create(AttributeType.UNSIGNED_BYTE, 0, 1, "Raw"), // BAYER_GRBG,
+        Channel.create(AttributeType.UNSIGNED_BYTE, 0, 1, "Raw"), // BAYER_BGGR,
+        Channel.create(AttributeType.UNSIGNED_BYTE, 0, 3, "H", "S", "V"), // HSV,
+        Channel.create(AttributeType.UNSIGNED_BYTE, 0, 3, "H", "L", "S"), // HLS,
         new Channel[0], // HI240, (unsupported)
         Channel.create(AttributeType.UNSIGNED_BYTE, 0, 1, "Y") // NV21 (less U and V values than Y values)
     };
@@ -153,6 +277,9 @@ public class Image implements HasBlittable, PaintablePortData, Compressible, Cop
     /** Current object for blitting */
     private BlackboardBlitter blitter;
 
+    /** Is blitter initialized for current image data? (blitter is (re-)initialized lazily - frames that are never blitted do not need it) */
+    private boolean blitterValid;
+
     /** Type of blittable object */
     private Format lastType = null;
 
@@ -164,50 +291,119 @@ public class Image implements HasBlittable, PaintablePortData, Compressible, Cop
     private Format format = Format.RGB24;
 
     /** Image Buffer */
-    private MemoryBuffer imageData = new MemoryBuffer(false);
+    private PayloadBuffer imageData = new PayloadBuffer();
+
+    /** Region of interest (as transferred with image) */
+    private boolean roiEnabled;
+    private int roiX, roiY, roiWidth, roiHeight;
+
+    /** Blittable for region of interest - and blittable plus image size it was created for */
+    private Blittable.Region roiBlittable;
+    private Blittable roiBlittableSource;
+    private int roiBlittableImageWidth, roiBlittableImageHeight;
+
+    /** BufferedImage sharing image data (returned by getBufferedImage()) - and the data array it was created for */
+    private BufferedImage sharedImage;
+    private byte[] sharedImageData;
+
+    /** Packed copy of (region of interest of) image data - returned by getByteBuffer() if image data is cropped or has padding */
+    private ByteBuffer packedData = ByteBuffer.allocate(0);
 
     /** Variables to handle compressed images */
     private boolean compressed = false;
     private byte[] compressedData = new byte[0];
-    private BufferedImage uncompressedImage = new BufferedImage(1, 1, BufferedImage.TYPE_3BYTE_BGR);
+    private int compressedDataSize;
+    private CompressedImageDecoder decoder;
+    private BufferedImage uncompressedImage = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
+    private int[] uncompressedPixels = ((DataBufferInt)uncompressedImage.getRaster().getDataBuffer()).getData();
     private ImageBlitter compressedBlitter = new ImageBlitter();
+
+    /** Decodes compressed images in the background (only used if asynchronous decoding is enabled) */
+    private AsyncImageDecoder asyncDecoder;
+
+    /** Is image content provided by asyncDecoder? And frame of asyncDecoder that is currently used */
+    private boolean asyncDecoding;
+    private AsyncImageDecoder.Frame asyncFrame;
     private static final byte PADDING_BYTES[] = new byte[3];
 
+    /** Variables to compress images (lazily initialized - and reused for subsequent frames) */
+    private HashMap<String, ImageWriter> imageWriters;
+    private CompressionOutputStream compressionOutput;
+    private Blittable.PaintHelper compressionImage;
+    private LZ4Codec lz4Codec;
+    private byte[] lz4Output = new byte[0];
+    private byte[] decodedImageData = new byte[0];
+
+    /** Quality of JPEG compression (0.0 - 1.0) */
+    private static volatile float jpegQuality = 0.8f;
+
+    /** Decode compressed images (JPEG, PNG) in background threads? */
+    private static volatile boolean asynchronousDecoding = false;
+
+    /** Serialize only region of interest of images (if enabled)? */
+    private static volatile boolean serializeRegionOfInterestOnly = false;
+
+    /** Window and colormap for displaying MONO16 and MONO32_FLOAT images - and number of changes to it */
+    private static volatile IntensityWindow intensityWindow = IntensityWindow.DEFAULT;
+    private static volatile long intensityWindowChanges;
+
     public int getWidth() {
+        updateDecodedFrame();
         return width;
     }
 
     public int getHeight() {
+        updateDecodedFrame();
         return height;
     }
 
     @Override
     public void serialize(BinaryOutputStream os) {
+        updateDecodedFrame();
+        if (serializeRegionOfInterestOnly && getCropRegion() != null) {
+            serializeRegionOfInterest(os);
+            return;
+        }
         if (compressed) {
-            throw new RuntimeException("Compressed image cannot be serialized (not yet implemented)");
+            // serialize decoded image as BGR32
+            int size = getDecodedImageBGR32();
+            os.writeInt(width);
+            os.writeInt(height);
+            os.writeEnum(Format.BGR32);
+            os.writeInt(size);
+            os.writeInt(0); // extra data size
+            os.writeBoolean(false);
+            os.writeInt(0);
+            os.writeInt(0);
+            os.writeInt(0);
+            os.writeInt(0);
+            os.write(decodedImageData, 0, size);
+            return;
         }
 
         os.writeInt(width);
         os.writeInt(height);
         os.writeEnum(format);
-        os.writeInt(imageData.getSize());
+        int alignedWidthStep = calculateWidthStep(width, format, 4);
+        boolean aligned = widthStep == alignedWidthStep;
+        os.writeInt(aligned ? imageData.getSize() : alignedWidthStep * height);
         os.writeInt(0); // extra data size
 
         // region of interest
-        os.writeBoolean(false);
-        os.writeInt(0);
-        os.writeInt(0);
-        os.writeInt(0);
-        os.writeInt(0);
-
-        // Write image data
-        int originalWidthStep = calculateWidthStep(width, format, 4);
-        int padding = originalWidthStep - widthStep;
-        if (padding == 0) {
+        os.writeBoolean(roiEnabled);
+        os.writeInt(roiX);
+        os.writeInt(roiY);
+        os.writeInt(roiWidth);
+        os.writeInt(roiHeight);
+
+        // Write image data (rows are only rewritten if image data does not have the standard alignment - e.g. after setImageDataRGB32())
+        if (aligned) {
             os.write(imageData.getBuffer(), 0, imageData.getSize());
         } else {
+            int rowBytes = calculateWidthStep(width, format, 1);
+            int padding = alignedWidthStep - rowBytes;
             for (int y = 0; y < height; y++) {
-                os.write(imageData.getBuffer(), y * widthStep, widthStep);
+                os.write(imageData.getBuffer(), y * widthStep, rowBytes);
                 os.write(PADDING_BYTES, 0, padding);
             }
         }
@@ -216,6 +412,7 @@ public class Image implements HasBlittable, PaintablePortData, Compressible, Cop
     @Override
     public void deserialize(BinaryInputStream is) {
         compressed = false;
+        endAsyncDecoding();
         width = is.readInt();
         height = is.readInt();
         format = is.readEnum(Format.class);
@@ -223,30 +420,20 @@ public class Image implements HasBlittable, PaintablePortData, Compressible, Cop
         int extraData = is.readInt();
 
         // region of interest
-        is.readBoolean();
-        is.readInt();
-        is.readInt();
-        is.readInt();
-        is.readInt();
+        roiEnabled = is.readBoolean();
+        roiX = is.readInt();
+        roiY = is.readInt();
+        roiWidth = is.readInt();
+        roiHeight = is.readInt();
 
-        // Read image data
+        // Read image data (keeping its row alignment - blitters honour any width step)
         imageData.clear();
-        int originalWidthStep = calculateWidthStep(width, format, 4);
-        widthStep = calculateWidthStep(width, format, 1);
-        int padding = originalWidthStep - widthStep;
-        if (padding == 0) {
-            imageData.deserialize(is, imageSize);
-        } else {
-            imageData.setSize(widthStep * height);
-            for (int y = 0; y < height; y++) {
-                is.readFully(imageData.getBuffer(), y * widthStep, widthStep);
-                is.skip(padding);
-            }
-        }
+        widthStep = calculateWidthStep(imageSize);
+        imageData.deserialize(is, imageSize);
         is.skip(extraData);
 
         // calculate internal variables
-        blitter = createBlittable();
+        blitterValid = false;
     }
 
     /**
@@ -257,37 +444,62 @@ public class Image implements HasBlittable, PaintablePortData, Compressible, Cop
             return width;
         }
 
-        int bpp = -1;
+        int temp;
+        if (format == Format.YUV411) {
+            temp = (width * 3 + 1) / 2; // 12 bits per pixel
+        } else {
+            int bpp = getBytesPerPixel(format);
+            if (bpp == 0) {
+                Log.log(LogLevel.DEBUG_VERBOSE_1, this, "warning (ImageBlackboard): Image format " + format + " not supported yet");
+                bpp = 1;
+            }
+            temp = bpp * width;
+        }
+        while ((temp % alignment) != 0) {
+            temp++;
+        }
+        return temp;
+    }
+
+    /**
+     * @param dataSize Size of image data in bytes
+     * @return Width step of image data with this size (rows are either aligned to 4 bytes - or packed)
+     */
+    private int calculateWidthStep(int dataSize) {
+        int alignedWidthStep = calculateWidthStep(width, format, 4);
+        return dataSize >= alignedWidthStep * height ? alignedWidthStep : calculateWidthStep(width, format, 1);
+    }
+
+    /**
+     * @param format Image format
+     * @return Number of bytes per pixel in first plane - or 0 if this is not a whole number (e.g. YUV411) or format is not supported
+     */
+    private static int getBytesPerPixel(Format format) {
         switch (format) {
         case RGB32:
         case BGR32:
         case MONO32_FLOAT:
-            bpp = 4;
-            break;
+            return 4;
         case RGB24:
         case BGR24:
         case YUV444:
-            bpp = 3;
-            break;
+        case HSV:
+        case HLS:
+            return 3;
         case RGB565:
         case MONO16:
         case YUV422:
-            bpp = 2;
-            break;
+        case UYVY422:
+            return 2;
         case MONO8:
-            bpp = 1;
-            break;
+        case BAYER_RGGB:
+        case BAYER_GBRG:
+        case BAYER_GRBG:
+        case BAYER_BGGR:
+            return 1;
         default:
-            Log.log(LogLevel.DEBUG_VERBOSE_1, this, "warning (ImageBlackboard): Image format " + format + " not supported yet");
-            bpp = 1;
-            //return Blittable.Empty.instance;
-        }
-
-        int temp = bpp * width;
-        while ((temp % alignment) != 0) {
-            temp++;
+            return 0;
         }
-        return temp;
     }
 
     /**
@@ -331,9 +543,33 @@ public class Image implements HasBlittable, PaintablePortData, Compressible, Cop
         case YUV422:
             blitter = new YUV422();
             break;
+        case UYVY422:
+            blitter = new UYVY422();
+            break;
+        case YUV411:
+            blitter = new YUV411();
+            break;
         case YUV420P:
             blitter = new YUV420P();
             break;
+        case BAYER_RGGB:
+            blitter = new Bayer(0, 0);
+            break;
+        case BAYER_GBRG:
+            blitter = new Bayer(0, 1);
+            break;
+        case BAYER_GRBG:
+            blitter = new Bayer(1, 0);
+            break;
+        case BAYER_BGGR:
+            blitter = new Bayer(1, 1);
+            break;
+        case HSV:
+            blitter = new HSV();
+            break;
+        case HLS:
+            blitter = new HLS();
+            break;
         case NV21:
             blitter = new NV21();
             break;
@@ -350,7 +586,34 @@ public class Image implements HasBlittable, PaintablePortData, Compressible, Cop
 
     @Override
     public Blittable getBlittable(int index) {
-        return compressed ? compressedBlitter : (blitter == null ? Blittable.Empty.instance : blitter);
+        updateDecodedFrame();
+        Blittable result = compressed ? compressedBlitter : getImageBlitter();
+        if (!isRegionOfInterestActive()) {
+            return result;
+        }
+        synchronized (this) {
+            if (roiBlittable == null || roiBlittableSource != result || roiBlittableImageWidth != width || roiBlittableImageHeight != height) {
+                roiBlittable = new Blittable.Region(result, new Rectangle(roiX, roiY, roiWidth, roiHeight));
+                roiBlittableSource = result;
+                roiBlittableImageWidth = width;
+                roiBlittableImageHeight = height;
+            }
+            return roiBlittable;
+        }
+    }
+
+    /**
+     * Blitter is initialized lazily - by the first thread that needs it
+     * (several consumers may use the same image concurrently - e.g. via ImageMailbox).
+     *
+     * @return Blitter for whole (uncompressed) image - ignoring region of interest
+     */
+    private synchronized BlackboardBlitter getImageBlitter() {
+        if (!blitterValid) {
+            blitter = createBlittable();
+            blitterValid = true;
+        }
+        return blitter;
     }
 
     @Override
@@ -360,24 +623,72 @@ public class Image implements HasBlittable, PaintablePortData, Compressible, Cop
 
     public abstract class BlackboardBlitter extends Blittable {
 
-        /** Width height and widthStep */
-        protected int srcY;
         public transient ByteBuffer imageData;
 
+        /** Image data as byte array (backing array of image buffer - or a copy of its content if it has no accessible array) */
+        protected transient byte[] data;
+
+        /** Index of first byte of image data in 'data' */
+        protected transient int dataOffset;
+
+        /** Copy of image data (only used if image buffer has no accessible array - e.g. off-heap storage) */
+        private byte[] dataCopy = new byte[0];
+
+        /** Is dataCopy up to date? (copy is only made when image is actually blitted) */
+        private boolean dataCopyValid;
+
+        /**
+         * Note that lineOffset passed to subclasses is an index in 'data'.
+         * Subclasses must not keep per-line state, as lines may be blitted concurrently.
+         */
         public void blitLineToRGB(int[] destBuffer, int destOffset, int srcX, int srcY, int srcOffset, int width) {
 
-            int offset = widthStep * srcY;
-            this.srcY = srcY;
+            int offset = dataOffset + widthStep * srcY;
             blitLineToRGB(destBuffer, destOffset, srcX, offset, width);
         }
 
         protected abstract void blitLineToRGB(int[] destBuffer, int destOffset, int srcX, int lineOffset, int width);
 
+        @Override
+        protected boolean blitSampledLineToRGB(int[] destBuffer, int destOffset, int srcY, int[] srcXs, int count) {
+            int lineOffset = dataOffset + widthStep * srcY;
+            for (int i = 0; i < count; i++) {
+                blitLineToRGB(destBuffer, destOffset + i, srcXs[i], lineOffset, 1);
+            }
+            return true;
+        }
+
         /**
          * (re-)initialize
          */
         public void reinit() {
-            imageData = Image.this.imageData.getBuffer().getBuffer();
+            imageData = Image.this.imageData.getBuffer().getBuffer(); // not shared: blitter is re-initialized whenever storage changes
+            if (imageData.hasArray()) {
+                data = imageData.array();
+                dataOffset = imageData.arrayOffset();
+            } else {
+                int size = Image.this.imageData.getSize();
+                dataCopy = BufferPool.ensureArraySize(dataCopy, size);
+                data = dataCopy;
+                dataOffset = 0;
+                dataCopyValid = false;
+            }
+            markChanged();
+        }
+
+        @Override
+        protected boolean isChangeTracked() {
+            return true;
+        }
+
+        @Override
+        protected synchronized void prepareBlit() {
+            if (data == dataCopy && !dataCopyValid) {
+                ByteBuffer source = imageData.duplicate();
+                source.clear();
+                source.get(dataCopy, 0, Image.this.imageData.getSize());
+                dataCopyValid = true;
+            }
         }
 
         @Override
@@ -395,28 +706,32 @@ public class Image implements HasBlittable, PaintablePortData, Compressible, Cop
         }
 
         protected int yuvToRGB(byte y, byte u, byte v) {
-            int _y = y & 0xFF;
-            int _u = (u & 0xFF) - 128;
-            int _v = (v & 0xFF) - 128;
-            int _r = _y + ((_v * 1436) >> 10);
-            int _g = _y - ((_u * 352 + _v * 731) >> 10);
-            int _b = _y + ((_u * 1814) >> 10);
-            int r = _r < 0 ? 0 : (_r > 255 ? 255 : _r);
-            int g = _g < 0 ? 0 : (_g > 255 ? 255 : _g);
-            int b = _b < 0 ? 0 : (_b > 255 ? 255 : _b);
-            return toInt((byte)r, (byte)g, (byte)b);
+            return YUVConverter.toRGB(y & 0xFF, u & 0xFF, v & 0xFF);
         }
     }
 
+    /**
+     * Blitter for decoded compressed images (copies lines from int RGB buffer)
+     */
     public class ImageBlitter extends Blittable {
 
         @Override
-        public void blitTo(Destination destination, Point dest, Rectangle sourceArea) {
-            destination.getBufferedImage().createGraphics().drawImage(uncompressedImage, dest.x, dest.y, sourceArea.width, sourceArea.height, Color.black, null);
+        protected void blitLineToRGB(int[] destBuffer, int destOffset, int srcX, int srcY, int srcOffset, int width) {
+            System.arraycopy(uncompressedPixels, srcOffset, destBuffer, destOffset, width);
         }
 
         @Override
-        protected void blitLineToRGB(int[] destBuffer, int destOffset, int srcX, int srcY, int srcOffset, int width) {
+        protected boolean blitSampledLineToRGB(int[] destBuffer, int destOffset, int srcY, int[] srcXs, int count) {
+            int lineOffset = srcY * width;
+            for (int i = 0; i < count; i++) {
+                destBuffer[destOffset + i] = uncompressedPixels[lineOffset + srcXs[i]];
+            }
+            return true;
+        }
+
+        @Override
+        protected boolean isChangeTracked() {
+            return true;
         }
 
         @Override
@@ -497,100 +812,161 @@ public class Image implements HasBlittable, PaintablePortData, Compressible, Cop
 
     }*/
 
-    public class RGB32 extends BlackboardBlitter {
+    /**
+     * Base class for formats with 8 bits per channel and packed pixels (fast nearest-neighbour sampling)
+     */
+    public abstract class PackedBlitter extends BlackboardBlitter {
+
+        /** Number of bytes per pixel and offsets of red, green and blue value in pixel */
+        private final int bytesPerPixel, rOffset, gOffset, bOffset;
+
+        protected PackedBlitter(int bytesPerPixel, int rOffset, int gOffset, int bOffset) {
+            this.bytesPerPixel = bytesPerPixel;
+            this.rOffset = rOffset;
+            this.gOffset = gOffset;
+            this.bOffset = bOffset;
+        }
 
         @Override
-        protected void blitLineToRGB(int[] destBuffer, int destOffset, int srcX, int lineOffset, int width) {
-            imageData.position(lineOffset + srcX * 4);
-            for (int x = 0; x < width; x++) {
-                destBuffer[destOffset] = toInt(imageData.get(), imageData.get(), imageData.get());
-                destOffset++;
-                imageData.get();
-            }
+        protected boolean blitSampledLineToRGB(int[] destBuffer, int destOffset, int srcY, int[] srcXs, int count) {
+            PixelConverter.sampledToRGB(data, dataOffset + widthStep * srcY, bytesPerPixel, rOffset, gOffset, bOffset, srcXs, destBuffer, destOffset, count);
+            return true;
         }
     }
 
-    public class RGB24 extends BlackboardBlitter {
+    public class RGB32 extends PackedBlitter {
+
+        public RGB32() {
+            super(4, 0, 1, 2);
+        }
 
         @Override
         protected void blitLineToRGB(int[] destBuffer, int destOffset, int srcX, int lineOffset, int width) {
-            imageData.position(lineOffset + srcX * 3);
-            for (int x = 0; x < width; x++) {
-                destBuffer[destOffset] = toInt(imageData.get(), imageData.get(), imageData.get());
-                destOffset++;
-            }
+            PixelConverter.rgb32ToRGB(data, lineOffset + srcX * 4, destBuffer, destOffset, width);
         }
     }
 
-    public class BGR24 extends BlackboardBlitter {
+    public class RGB24 extends PackedBlitter {
+
+        public RGB24() {
+            super(3, 0, 1, 2);
+        }
 
         @Override
         protected void blitLineToRGB(int[] destBuffer, int destOffset, int srcX, int lineOffset, int width) {
-            imageData.position(lineOffset + srcX * 3);
-            for (int x = 0; x < width; x++) {
-                byte b = imageData.get();
-                byte g = imageData.get();
-                destBuffer[destOffset] = toInt(imageData.get(), g, b);
-                destOffset++;
-            }
+            PixelConverter.rgb24ToRGB(data, lineOffset + srcX * 3, destBuffer, destOffset, width);
         }
     }
 
-    public class BGR32 extends BlackboardBlitter {
+    public class BGR24 extends PackedBlitter {
+
+        public BGR24() {
+            super(3, 2, 1, 0);
+        }
 
         @Override
         protected void blitLineToRGB(int[] destBuffer, int destOffset, int srcX, int lineOffset, int width) {
-            imageData.position(lineOffset + srcX * 4);
-            IntBuffer ib = imageData.asIntBuffer();
-            ib.get(destBuffer, destOffset, width);
+            PixelConverter.bgr24ToRGB(data, lineOffset + srcX * 3, destBuffer, destOffset, width);
         }
     }
 
-    public class Mono8 extends BlackboardBlitter {
+    public class BGR32 extends PackedBlitter {
+
+        public BGR32() {
+            super(4, 2, 1, 0);
+        }
 
         @Override
         protected void blitLineToRGB(int[] destBuffer, int destOffset, int srcX, int lineOffset, int width) {
-            imageData.position(lineOffset + srcX);
-            for (int x = 0; x < width; x++) {
-                byte b = imageData.get();
-                destBuffer[destOffset] = toInt(b, b, b);
-                destOffset++;
-            }
+            PixelConverter.bgr32ToRGB(data, lineOffset + srcX * 4, destBuffer, destOffset, width);
         }
     }
 
-    public class Mono16 extends BlackboardBlitter {
+    public class Mono8 extends PackedBlitter {
+
+        public Mono8() {
+            super(1, 0, 0, 0);
+        }
 
         @Override
         protected void blitLineToRGB(int[] destBuffer, int destOffset, int srcX, int lineOffset, int width) {
-            imageData.position(lineOffset + srcX * 2);
-            for (int x = 0; x < width; x++) {
-                imageData.get(); // skip
-                byte b = imageData.get();
-                destBuffer[destOffset] = toInt(b, b, b);
-                destOffset++;
+            PixelConverter.mono8ToRGB(data, lineOffset + srcX, destBuffer, destOffset, width);
+        }
+    }
+
+    /**
+     * Blitter for single channel images with large value range - mapped to colors according to the intensity window.
+     * The window is determined once per frame in reinit() (and again if the intensity window changes) - rows are then converted via lookup table.
+     */
+    public abstract class IntensityBlitter extends BlackboardBlitter {
+
+        /** Maps pixel values to colors */
+        protected final IntensityMapper mapper = new IntensityMapper();
+
+        /** Frame generation and window that mapper was updated for */
+        private long mappedGeneration = -1;
+        private IntensityWindow mappedWindow;
+
+        @Override
+        public void reinit() {
+            super.reinit();
+            prepareBlit(); // determines window for new frame
+        }
+
+        @Override
+        protected synchronized void prepareBlit() {
+            super.prepareBlit();
+            long generation = getGeneration();
+            IntensityWindow window = intensityWindow;
+            if (generation != mappedGeneration || window != mappedWindow) {
+                updateMapper(window);
+                mappedGeneration = generation;
+                mappedWindow = window;
             }
         }
+
+        @Override
+        public long getGeneration() {
+            return super.getGeneration() + intensityWindowChanges; // content changes with window
+        }
+
+        @Override
+        protected Rectangle takeChangedArea() {
+            super.takeChangedArea();
+            return null; // window depends on whole frame - so any change may affect all pixels
+        }
+
+        /**
+         * Updates mapper for current frame
+         *
+         * @param window Window to apply
+         */
+        protected abstract void updateMapper(IntensityWindow window);
     }
 
+    public class Mono16 extends IntensityBlitter {
+
+        @Override
+        protected void updateMapper(IntensityWindow window) {
+            mapper.update16(data, dataOffset, widthStep, width, height, window);
+        }
+
+        @Override
+        protected void blitLineToRGB(int[] destBuffer, int destOffset, int srcX, int lineOffset, int width) {
+            PixelConverter.mono16ToRGB(data, lineOffset + srcX * 2, mapper.getLookupTable(), destBuffer, destOffset, width);
+        }
+    }
 
-    public class Mono32Float extends BlackboardBlitter {
+    public class Mono32Float extends IntensityBlitter {
 
-        float maximum = 1;
+        @Override
+        protected void updateMapper(IntensityWindow window) {
+            mapper.updateFloat(data, dataOffset, widthStep, width, height, window);
+        }
 
         @Override
         protected void blitLineToRGB(int[] destBuffer, int destOffset, int srcX, int lineOffset, int width) {
-            imageData.position(lineOffset + srcX * 4);
-            for (int x = 0; x < width; x++) {
-                maximum = Math.max(maximum, imageData.getFloat());
-            }
-            imageData.position(lineOffset + srcX * 4);
-            float divisor = maximum / 255;
-            for (int x = 0; x < width; x++) {
-                byte value = (byte)(Math.max(0, imageData.getFloat()) / divisor);
-                destBuffer[destOffset] = toInt(value, value, value);
-                destOffset++;
-            }
+            PixelConverter.float32ToRGB(data, lineOffset + srcX * 4, mapper.getFloatOffset(), mapper.getFloatScale(), mapper.getLookupTable(), destBuffer, destOffset, width);
         }
     }
 
@@ -598,19 +974,7 @@ public class Image implements HasBlittable, PaintablePortData, Compressible, Cop
 
         @Override
         protected void blitLineToRGB(int[] destBuffer, int destOffset, int srcX, int lineOffset, int width) {
-            byte zero = 0;
-            imageData.position(lineOffset + srcX * 2);
-            for (int x = 0; x < width; x++) {
-                byte b1 = imageData.get();
-                byte b2 = imageData.get();
-                int sh = toInt(zero, b1, b2);
-                int r = (sh & 0x001F);
-                int g = (sh & 0x07E0) >> 6;
-                int b = (sh & 0xF800) >> 11;
-                destBuffer[destOffset] = toInt((byte)r, (byte)g, (byte)b);
-                imageData.get(); // skip
-                destOffset++;
-            }
+            PixelConverter.rgb565ToRGB(data, lineOffset + srcX * 2, destBuffer, destOffset, width);
         }
     }
 
@@ -618,11 +982,7 @@ public class Image implements HasBlittable, PaintablePortData, Compressible, Cop
 
         @Override
         protected void blitLineToRGB(int[] destBuffer, int destOffset, int srcX, int lineOffset, int width) {
-            imageData.position(lineOffset + srcX * 3);
-            for (int x = 0; x < width; x++) {
-                destBuffer[destOffset] = yuvToRGB(imageData.get(), imageData.get(), imageData.get());
-                destOffset++;
-            }
+            YUVConverter.yuv444ToRGB(data, lineOffset + srcX * 3, destBuffer, destOffset, width);
         }
     }
 
@@ -630,97 +990,169 @@ public class Image implements HasBlittable, PaintablePortData, Compressible, Cop
 
         @Override
         protected void blitLineToRGB(int[] destBuffer, int destOffset, int srcX, int lineOffset, int width) {
+            YUVConverter.yuv422ToRGB(data, lineOffset + (srcX / 2) * 4, (srcX & 1) != 0, destBuffer, destOffset, width);
+        }
+    }
 
-            byte y1, y2, u, v;
+    /**
+     * Base class for planar and semi-planar YUV formats with chroma subsampled by two in both directions.
+     * Plane offsets are calculated once per frame in reinit().
+     * Pairs of rows sharing a chroma row are converted together.
+     */
+    public abstract class SubsampledChromaBlitter extends BlackboardBlitter {
 
-            // ungerade Zahl am Anfang?
-            imageData.position(lineOffset + (srcX / 2) * 4);
-            if (srcX % 2 != 0) {
-                y1  = imageData.get();
-                u = imageData.get();
-                y2  = imageData.get();
-                v = imageData.get();
-                destBuffer[destOffset] = yuvToRGB(y2, u, v);
-                destOffset++;
-                width--;
-            }
+        /** Indices of first Y, U and V value in 'data' */
+        protected int yPlane, uPlane, vPlane;
+
+        /** Distance between adjacent chroma samples in a chroma row */
+        protected int uvStep;
+
+        /** Distance between adjacent chroma rows */
+        protected int uvStride;
+
+        @Override
+        public void reinit() {
+            super.reinit();
+            yPlane = dataOffset;
+            initChromaPlanes(yPlane + width * height, width / 2);
+        }
+
+        /**
+         * Sets uPlane, vPlane, uvStep and uvStride
+         *
+         * @param chromaOffset Index of first chroma value in 'data'
+         * @param chromaWidth Number of chroma samples per chroma row
+         */
+        protected abstract void initChromaPlanes(int chromaOffset, int chromaWidth);
+
+        @Override
+        protected void blitLineToRGB(int[] destBuffer, int destOffset, int srcX, int lineOffset, int width) {
+            int srcY = (lineOffset - dataOffset) / widthStep;
+            int uvIndex = (srcY >> 1) * uvStride + (srcX >> 1) * uvStep;
+            YUVConverter.subsampledRowToRGB(data, lineOffset + srcX, 1, uPlane + uvIndex, vPlane + uvIndex, uvStep, (srcX & 1) != 0, destBuffer, destOffset, width);
+        }
 
-            // main block
-            boolean singlePixelEnd = (width % 2 != 0);
-            width = (width / 2) * 2;
-            for (int x = 0; x < width; x += 2) {
-                y1  = imageData.get();
-                u = imageData.get();
-                y2  = imageData.get();
-                v = imageData.get();
-                destBuffer[destOffset] = yuvToRGB(y1, u, v);
-                destBuffer[destOffset + 1] = yuvToRGB(y2, u, v);
-                destOffset += 2;
+        @Override
+        protected boolean blitSampledLineToRGB(int[] destBuffer, int destOffset, int srcY, int[] srcXs, int count) {
+            int yLine = yPlane + srcY * widthStep;
+            int uvLine = (srcY >> 1) * uvStride;
+            for (int i = 0; i < count; i++) {
+                int x = srcXs[i];
+                int uvIndex = uvLine + (x >> 1) * uvStep;
+                destBuffer[destOffset + i] = YUVConverter.toRGB(data[yLine + x] & 0xFF, data[uPlane + uvIndex] & 0xFF, data[vPlane + uvIndex] & 0xFF);
             }
+            return true;
+        }
 
-            // ungerade Zahl am Ende?
-            if (singlePixelEnd) {
-                y1  = imageData.get();
-                u = imageData.get();
-                y2  = imageData.get();
-                v = imageData.get();
-                destBuffer[destOffset] = yuvToRGB(y1, u, v);
+        @Override
+        protected void blitLinesToRGB(int[] destBuffer, int destPos, int destStride, int srcX, int srcY, int width, int lines) {
+            int y = srcY;
+            int end = srcY + lines;
+            if ((y & 1) != 0) {
+                blitLineToRGB(destBuffer, destPos, srcX, yPlane + y * widthStep, width);
+                destPos += destStride;
+                y++;
+            }
+            boolean odd = (srcX & 1) != 0;
+            int uvIndex = (y >> 1) * uvStride + (srcX >> 1) * uvStep;
+            int yIndex = yPlane + y * widthStep + srcX;
+            for (; y + 1 < end; y += 2) {
+                YUVConverter.subsampledRowPairToRGB(data, yIndex, yIndex + widthStep, uPlane + uvIndex, vPlane + uvIndex, uvStep, odd, destBuffer, destPos, destPos + destStride, width);
+                uvIndex += uvStride;
+                yIndex += 2 * widthStep;
+                destPos += 2 * destStride;
+            }
+            if (y < end) {
+                blitLineToRGB(destBuffer, destPos, srcX, yPlane + y * widthStep, width);
             }
         }
     }
 
-    public class YUV420P extends BlackboardBlitter {
+    public class YUV420P extends SubsampledChromaBlitter {
+
+        @Override
+        protected void initChromaPlanes(int chromaOffset, int chromaWidth) {
+            uPlane = chromaOffset;
+            vPlane = chromaOffset + (width * height) / 4;
+            uvStep = 1;
+            uvStride = chromaWidth;
+        }
+    }
+
+    public class NV21 extends SubsampledChromaBlitter {
+
+        @Override
+        protected void initChromaPlanes(int chromaOffset, int chromaWidth) {
+            vPlane = chromaOffset;
+            uPlane = chromaOffset + 1;
+            uvStep = 2;
+            uvStride = chromaWidth * 2;
+        }
+    }
+
+    public class UYVY422 extends BlackboardBlitter {
 
         @Override
         protected void blitLineToRGB(int[] destBuffer, int destOffset, int srcX, int lineOffset, int width) {
+            int macroPixel = lineOffset + (srcX / 2) * 4;
+            boolean odd = (srcX & 1) != 0;
+            YUVConverter.subsampledRowToRGB(data, macroPixel + (odd ? 3 : 1), 2, macroPixel, macroPixel + 2, 4, odd, destBuffer, destOffset, width);
+        }
+    }
 
-            int yArraySize = getHeight() * getWidth();
-            int uvArraySize = yArraySize / 4;
-            int yArrayOffset = 0;
-            int uArrayOffset = yArrayOffset + yArraySize;
-            int vArrayOffset = uArrayOffset + uvArraySize;
-
-            int x = srcX;
-            int ypos = srcY * getWidth() + x + yArrayOffset;
-            int uvOffset = (srcY / 2) * (getWidth() / 2);
-
-            for (int i = 0; i < width; i++) {
-                byte y = imageData.get(ypos);
-                int uvIndex = uvOffset + x / 2;
-                byte u = imageData.get(uvIndex + uArrayOffset);
-                byte v = imageData.get(uvIndex + vArrayOffset);
-                destBuffer[destOffset] = yuvToRGB(y, u, v);
-                ypos++;
-                x++;
-                destOffset++;
+    public class YUV411 extends BlackboardBlitter {
+
+        @Override
+        protected void blitLineToRGB(int[] destBuffer, int destOffset, int srcX, int lineOffset, int width) {
+            PixelConverter.yuv411ToRGB(data, lineOffset, srcX, destBuffer, destOffset, width);
+        }
+    }
+
+    /**
+     * Bilinear demosaicing of raw Bayer pattern images.
+     * Every line is interpolated from itself and the lines above and below (mirrored at the borders).
+     */
+    public class Bayer extends BlackboardBlitter {
+
+        /** Position of red pixel in 2x2 pattern */
+        private final int redX, redY;
+
+        /**
+         * @param redX X position of red pixel in 2x2 pattern
+         * @param redY Y position of red pixel in 2x2 pattern
+         */
+        public Bayer(int redX, int redY) {
+            this.redX = redX;
+            this.redY = redY;
+        }
+
+        @Override
+        protected void blitLineToRGB(int[] destBuffer, int destOffset, int srcX, int lineOffset, int width) {
+            if (getWidth() < 2 || getHeight() < 2) {
+                PixelConverter.mono8ToRGB(data, lineOffset + srcX, destBuffer, destOffset, width);
+                return;
             }
+            int srcY = (lineOffset - dataOffset) / widthStep;
+            int above = srcY == 0 ? lineOffset + widthStep : lineOffset - widthStep;
+            int below = srcY == getHeight() - 1 ? lineOffset - widthStep : lineOffset + widthStep;
+            boolean redLine = ((srcY ^ redY) & 1) == 0;
+            PixelConverter.bayerToRGB(data, above, lineOffset, below, getWidth(), redLine, redLine ? redX : (1 - redX), srcX, destBuffer, destOffset, width);
         }
     }
 
-    public class NV21 extends BlackboardBlitter {
+    public class HSV extends BlackboardBlitter {
 
         @Override
         protected void blitLineToRGB(int[] destBuffer, int destOffset, int srcX, int lineOffset, int width) {
+            PixelConverter.hsvToRGB(data, lineOffset + srcX * 3, destBuffer, destOffset, width);
+        }
+    }
 
-            int yArraySize = getHeight() * getWidth();
-            int uvArraySize = yArraySize / 4;
-            int yArrayOffset = 0;
-            int uvArrayOffset = yArrayOffset + yArraySize;
-
-            int x = srcX;
-            int ypos = srcY * getWidth() + x + yArrayOffset;
-            int uvOffset = ((srcY / 2) * (getWidth() / 2));
-
-            for (int i = 0; i < width; i++) {
-                byte y = imageData.get(ypos);
-                int uvIndex = (uvOffset + x / 2) * 2;
-                byte u = imageData.get(uvIndex + uvArrayOffset + 1);
-                byte v = imageData.get(uvIndex + uvArrayOffset);
-                destBuffer[destOffset] = yuvToRGB(y, u, v);
-                ypos++;
-                x++;
-                destOffset++;
-            }
+    public class HLS extends BlackboardBlitter {
+
+        @Override
+        protected void blitLineToRGB(int[] destBuffer, int destOffset, int srcX, int lineOffset, int width) {
+            PixelConverter.hlsToRGB(data, lineOffset + srcX * 3, destBuffer, destOffset, width);
         }
     }
 
@@ -737,12 +1169,247 @@ public class Image implements HasBlittable, PaintablePortData, Compressible, Cop
 
     @Override
     public Rectangle2D getBounds() {
+        if (isRegionOfInterestActive()) {
+            Rectangle roi = getRegionOfInterest();
+            return new Rectangle2D.Double(roi.x, roi.y, roi.width, roi.height);
+        }
         return new Rectangle2D.Double(0, 0, width, height);
     }
 
     @Override
     public void paint(Graphics2D g, FastBufferedImage imageBuffer) {
-        getBlittable(0).standardPaintImplementation(g);
+        BufferedImage image = getPaintImage(false);
+        if (image == null) {
+            return;
+        }
+        Rectangle region = isRegionOfInterestActive() ? getRegionOfInterest() : new Rectangle(0, 0, width, height);
+        if (image.getWidth() == width && image.getHeight() == height) {
+            g.drawImage(image, region.x, region.y, region.x + region.width, region.y + region.height, region.x, region.y, region.x + region.width, region.y + region.height, null);
+        } else {
+            g.drawImage(image, region.x, region.y, null); // paint buffer of region of interest
+        }
+    }
+
+    /**
+     * Prepares image for painting: wraps image data - or converts (region of interest of) image to RGB if this is not possible.
+     * May be called from any thread.
+     *
+     * @param retain Keep paint buffer of blittable (see Blittable.updatePaintBuffer(boolean))?
+     * @return Either image returned by getBufferedImage() or paint buffer of blittable (null if image is empty)
+     */
+    private BufferedImage getPaintImage(boolean retain) {
+        BufferedImage image = getBufferedImage();
+        return image != null ? image : getBlittable(0).updatePaintBuffer(retain);
+    }
+
+    /**
+     * Provides the whole image (ignoring region of interest) as BufferedImage without converting or copying pixels:
+     * For BGR24 and MONO8 images, the returned image wraps this image's data array (as TYPE_3BYTE_BGR or TYPE_BYTE_GRAY image).
+     * Other formats are not wrapped - Java2D would draw them with its slow generic loops (TYPE_CUSTOM), so blitting them is faster.
+     * For compressed images, the decoded image is returned.
+     * The returned image is only valid until this image changes - and must not be modified.
+     *
+     * @return BufferedImage - or null if image data cannot be wrapped (other formats, data stored off-heap or empty image)
+     */
+    public BufferedImage getBufferedImage() {
+        updateDecodedFrame();
+        if (width <= 0 || height <= 0) {
+            return null;
+        }
+        if (compressed) {
+            return uncompressedImage;
+        }
+        int[] bandOffsets;
+        int pixelStride;
+        switch (format) {
+        case BGR24:
+            bandOffsets = new int[] {2, 1, 0};
+            pixelStride = 3;
+            break;
+        case MONO8:
+            bandOffsets = new int[] {0};
+            pixelStride = 1;
+            break;
+        default:
+            return null;
+        }
+        ByteBuffer buffer = imageData.getSharedBuffer();
+        if (!buffer.hasArray() || imageData.getSize() < widthStep * (height - 1) + width * pixelStride) {
+            return null;
+        }
+        byte[] array = buffer.array();
+        if (sharedImage != null && sharedImageData == array && sharedImage.getWidth() == width && sharedImage.getHeight() == height &&
+                sharedImage.getRaster().getSampleModel() instanceof PixelInterleavedSampleModel) {
+            PixelInterleavedSampleModel model = (PixelInterleavedSampleModel)sharedImage.getRaster().getSampleModel();
+            if (model.getScanlineStride() == widthStep && model.getPixelStride() == pixelStride && model.getBandOffsets()[0] == bandOffsets[0] &&
+                    model.getNumBands() == bandOffsets.length && sharedImage.getRaster().getDataBuffer().getOffset() == buffer.arrayOffset()) {
+                return sharedImage;
+            }
+        }
+
+        // DataBufferByte created with an existing array is not cached by Java2D - so changes to data are always visible
+        DataBufferByte dataBuffer = new DataBufferByte(array, array.length - buffer.arrayOffset(), buffer.arrayOffset());
+        PixelInterleavedSampleModel sampleModel = new PixelInterleavedSampleModel(DataBuffer.TYPE_BYTE, width, height, pixelStride, widthStep, bandOffsets);
+        ColorSpace colorSpace = ColorSpace.getInstance(bandOffsets.length == 1 ? ColorSpace.CS_GRAY : ColorSpace.CS_sRGB);
+        ComponentColorModel colorModel = new ComponentColorModel(colorSpace, false, false, Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
+        sharedImage = new BufferedImage(colorModel, Raster.createWritableRaster(sampleModel, dataBuffer, null), false, null);
+        sharedImageData = array;
+        return sharedImage;
+    }
+
+    /**
+     * @return Region of interest (clipped to image bounds) - or null if region of interest is disabled
+     */
+    public Rectangle getRegionOfInterest() {
+        if (!roiEnabled) {
+            return null;
+        }
+        return new Rectangle(roiX, roiY, roiWidth, roiHeight).intersection(new Rectangle(0, 0, width, height));
+    }
+
+    /**
+     * Sets region of interest.
+     * If active, getBlittable(), getBounds(), getArrayDimensions() and getByteBuffer() refer to this region only.
+     *
+     * @param region Region of interest (null disables region of interest)
+     */
+    public void setRegionOfInterest(Rectangle region) {
+        roiEnabled = region != null;
+        roiX = roiEnabled ? region.x : 0;
+        roiY = roiEnabled ? region.y : 0;
+        roiWidth = roiEnabled ? region.width : 0;
+        roiHeight = roiEnabled ? region.height : 0;
+        roiBlittable = null;
+    }
+
+    /**
+     * @return True if region of interest is enabled and does not cover the whole image
+     */
+    public boolean isRegionOfInterestActive() {
+        return roiEnabled && (roiX > 0 || roiY > 0 || roiX + roiWidth < width || roiY + roiHeight < height);
+    }
+
+    /**
+     * If enabled, images with active region of interest are serialized cropped to this region
+     * (so that e.g. only a small region of a large frame is transferred)
+     *
+     * @param enabled Serialize only region of interest?
+     */
+    public static void setSerializeRegionOfInterestOnly(boolean enabled) {
+        serializeRegionOfInterestOnly = enabled;
+    }
+
+    /**
+     * Region of interest that can be cropped from image data
+     * (coordinates are aligned so that cropped image has the same format, e.g. even for Bayer patterns)
+     *
+     * @return Region to crop - or null if region of interest is not active or image data cannot be cropped (compressed or planar formats)
+     */
+    private Rectangle getCropRegion() {
+        if (compressed || !isRegionOfInterestActive() || getBytesPerPixel(format) == 0) {
+            return null;
+        }
+        Rectangle region = getRegionOfInterest();
+        boolean evenX = format == Format.YUV422 || format == Format.UYVY422 || format.name().startsWith("BAYER");
+        boolean evenY = format.name().startsWith("BAYER");
+        if (evenX) {
+            int right = Math.min(width, region.x + region.width + 1) & ~1;
+            region.x &= ~1;
+            region.width = right - region.x;
+        }
+        if (evenY) {
+            int bottom = Math.min(height, region.y + region.height + 1) & ~1;
+            region.y &= ~1;
+            region.height = bottom - region.y;
+        }
+        return region.isEmpty() ? null : region;
+    }
+
+    /**
+     * Copies rows of region from image data (cropped to region) to destination buffer
+     *
+     * @param region Region to copy
+     * @param dest Destination buffer (cropped rows are written starting at index 0)
+     * @param destStride Distance of rows in destination buffer (in bytes)
+     */
+    private void copyRegion(Rectangle region, ByteBuffer dest, int destStride) {
+        int rowBytes = region.width * getBytesPerPixel(format);
+        ByteBuffer source = imageData.getBuffer().getBuffer().duplicate();
+        ByteBuffer destination = dest.duplicate();
+        destination.clear(); // limit of dest may be left from a smaller region (e.g. packedData)
+        for (int y = 0; y < region.height; y++) {
+            int position = (region.y + y) * widthStep + region.x * getBytesPerPixel(format);
+            source.limit(position + rowBytes);
+            source.position(position);
+            destination.position(y * destStride);
+            destination.put(source);
+        }
+    }
+
+    /**
+     * Serializes region of interest as separate image (see setSerializeRegionOfInterestOnly())
+     *
+     * @param os Stream to serialize to
+     */
+    private void serializeRegionOfInterest(BinaryOutputStream os) {
+        Rectangle region = getCropRegion();
+        int rowBytes = region.width * getBytesPerPixel(format);
+        int stride = (rowBytes + 3) & ~3;
+        preparePackedData(region, stride);
+        os.writeInt(region.width);
+        os.writeInt(region.height);
+        os.writeEnum(format);
+        os.writeInt(stride * region.height);
+        os.writeInt(0); // extra data size
+        os.writeBoolean(false);
+        os.writeInt(0);
+        os.writeInt(0);
+        os.writeInt(0);
+        os.writeInt(0);
+        os.write(packedData.array(), 0, stride * region.height);
+    }
+
+    /**
+     * Fills packedData with (cropped) region
+     *
+     * @param region Region to crop
+     * @param stride Distance of rows in packedData (in bytes)
+     */
+    private void preparePackedData(Rectangle region, int stride) {
+        int size = stride * region.height;
+        if (packedData.capacity() < size) {
+            packedData = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        copyRegion(region, packedData, stride);
+        packedData.clear();
+        packedData.limit(size);
+    }
+
+    /**
+     * Copies only the region of interest of source image to this image.
+     * The copy has the size of the region of interest and no region of interest set.
+     * If source's region of interest is not active or cannot be cropped, copies the whole image.
+     *
+     * @param source Source image
+     */
+    public void copyRegionOfInterest(Image source) {
+        source.updateDecodedFrame();
+        Rectangle region = source.getCropRegion();
+        if (region == null) {
+            copyFrom(source);
+            return;
+        }
+        compressed = false;
+        endAsyncDecoding();
+        width = region.width;
+        height = region.height;
+        format = source.format;
+        widthStep = calculateWidthStep(width, format, 1);
+        imageData.clear();
+        imageData.setSize(widthStep * height);
+        source.copyRegion(region, imageData.getBuffer().getBuffer(), widthStep);
+        setRegionOfInterest(null);
+        blitterValid = false;
     }
 
     /**
@@ -758,12 +1425,13 @@ public class Image implements HasBlittable, PaintablePortData, Compressible, Cop
         this.height = height;
         format = Format.BGR32;
         imageData.clear();
-        BinaryOutputStream os = new BinaryOutputStream(imageData);
-        for (int i = 0, n = width * height; i < n; i++) {
-            os.writeInt(data[i]);
-        }
-        os.close();
+        imageData.setSize(width * height * 4);
+        ByteBuffer buffer = imageData.getBuffer().getBuffer().duplicate();
+        buffer.clear();
+        buffer.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().put(data, 0, width * height);
         widthStep = calculateWidthStep(width, format, 1);
+        compressed = false;
+        blitterValid = false;
     }
 
     @Override
@@ -771,51 +1439,627 @@ public class Image implements HasBlittable, PaintablePortData, Compressible, Cop
         return true;
     }
 
+    /**
+     * @param quality Quality of JPEG compression (0.0 - 1.0)
+     */
+    public static void setJpegQuality(float quality) {
+        jpegQuality = Math.max(0, Math.min(1, quality));
+    }
+
+    /**
+     * @param window Window and colormap for displaying MONO16 and MONO32_FLOAT images (e.g. depth or thermal images)
+     */
+    public static void setIntensityWindow(IntensityWindow window) {
+        intensityWindow = window != null ? window : IntensityWindow.DEFAULT;
+        intensityWindowChanges++;
+    }
+
+    /**
+     * @return Window and colormap for displaying MONO16 and MONO32_FLOAT images
+     */
+    public static IntensityWindow getIntensityWindow() {
+        return intensityWindow;
+    }
+
+    /**
+     * If enabled, decompressNext() only stores JPEG and PNG data - and images are decoded by a pool of worker threads.
+     * If the next frame arrives before the previous one was decoded, the previous one is dropped.
+     * The image then provides the most recently decoded frame (and is empty until the first frame is decoded).
+     * As decoding finishes after the image was received, users should add a listener to the decoder
+     * (see getAsyncDecoder()) to repaint - and share one decoder among the buffers of a port (see setAsyncDecoder()).
+     *
+     * @param enabled Decode compressed images asynchronously?
+     */
+    public static void setAsynchronousDecoding(boolean enabled) {
+        asynchronousDecoding = enabled;
+    }
+
+    /**
+     * @return Are compressed images decoded asynchronously?
+     */
+    public static boolean isAsynchronousDecoding() {
+        return asynchronousDecoding;
+    }
+
+    /**
+     * Sets decoder for asynchronous decoding of this image (see setAsynchronousDecoding()).
+     * By default, every image has its own decoder. Buffers receiving the same stream (e.g. the pooled
+     * buffers of a port) should share one decoder - so that stale frames are dropped across buffers
+     * and an image that receives a new frame can display the latest frame decoded so far.
+     *
+     * @param decoder Decoder to use
+     */
+    public synchronized void setAsyncDecoder(AsyncImageDecoder decoder) {
+        if (decoder != asyncDecoder) {
+            endAsyncDecoding();
+            asyncDecoder = decoder;
+        }
+    }
+
+    /**
+     * Listeners may be added to the returned decoder in order to be notified when frames have been decoded
+     * (e.g. to repaint images: decoding finishes after port data was received).
+     *
+     * @return Decoder for asynchronous decoding of this image (created if it does not exist yet)
+     */
+    public synchronized AsyncImageDecoder getAsyncDecoder() {
+        if (asyncDecoder == null) {
+            asyncDecoder = new AsyncImageDecoder();
+        }
+        return asyncDecoder;
+    }
+
+    /**
+     * Stops displaying frames of asyncDecoder - and releases current frame
+     * (so that the decoder may reuse its buffer)
+     */
+    private synchronized void endAsyncDecoding() {
+        asyncDecoding = false;
+        if (asyncFrame != null) {
+            asyncDecoder.release(asyncFrame);
+            asyncFrame = null;
+            uncompressedImage = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB); // do not write to the decoder's frame buffers
+            uncompressedPixels = ((DataBufferInt)uncompressedImage.getRaster().getDataBuffer()).getData();
+        }
+    }
+
+    /**
+     * If this image is decoded asynchronously, switches to the most recently decoded frame
+     * (may be called by any thread using this image)
+     */
+    private synchronized void updateDecodedFrame() {
+        if (asyncDecoding) {
+            AsyncImageDecoder.Frame frame = asyncDecoder.getLatestFrame();
+            if (frame != null && frame != asyncFrame) {
+                frame = asyncDecoder.acquireLatestFrame();
+                if (asyncFrame != null) {
+                    asyncDecoder.release(asyncFrame);
+                }
+                asyncFrame = frame;
+                uncompressedImage = frame.image;
+                uncompressedPixels = frame.pixels;
+                width = frame.width;
+                height = frame.height;
+                compressedBlitter.markChanged();
+            }
+        }
+    }
+
     @Override
     public void compressNext(BinaryOutputStream stream, String compressionType) {
-        throw new RuntimeException("not implemented");
+        updateDecodedFrame();
+        if (compressionType.equalsIgnoreCase("lz4")) {
+            compressLZ4(stream);
+            return;
+        }
+
+        // JPEG or PNG: encode image with (reused) ImageIO writer
+        if (imageWriters == null) {
+            imageWriters = new HashMap<String, ImageWriter>();
+            compressionOutput = new CompressionOutputStream();
+        }
+        String type = compressionType.toLowerCase();
+        ImageWriter writer = imageWriters.get(type);
+        if (writer == null) {
+            Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(type);
+            if (!writers.hasNext()) {
+                throw new RuntimeException("Compression type " + compressionType + " not supported");
+            }
+            writer = writers.next();
+            imageWriters.put(type, writer);
+        }
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        if (type.equals("jpeg") && param.canWriteCompressed()) {
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(jpegQuality);
+        }
+
+        BufferedImage image = uncompressedImage;
+        if (!compressed) {
+            if (compressionImage == null || compressionImage.getWidth() != width || compressionImage.getHeight() != height) {
+                compressionImage = new Blittable.PaintHelper(width, height);
+            }
+            getImageBlitter().blitTo(compressionImage); // whole image - region of interest is not part of compressed data
+            image = compressionImage;
+        }
+
+        compressionOutput.reset();
+        try {
+            ImageOutputStream imageOutput = new MemoryCacheImageOutputStream(compressionOutput);
+            writer.setOutput(imageOutput);
+            writer.write(null, new IIOImage(image, null, null), param);
+            imageOutput.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        stream.write(compressionOutput.getBuffer(), 0, compressionOutput.size());
+    }
+
+    /**
+     * Compresses raw image data (lossless) using LZ4
+     * (decoded compressed images are stored as BGR32)
+     *
+     * @param stream Stream to write compressed data to
+     */
+    private void compressLZ4(BinaryOutputStream stream) {
+        byte[] raw;
+        int rawOffset = 0;
+        int rawSize;
+        Format rawFormat = format;
+        if (compressed) {
+            rawSize = getDecodedImageBGR32();
+            raw = decodedImageData;
+            rawFormat = Format.BGR32;
+        } else {
+            rawSize = imageData.getSize();
+            ByteBuffer buffer = imageData.getBuffer().getBuffer();
+            if (buffer.hasArray()) {
+                raw = buffer.array();
+                rawOffset = buffer.arrayOffset();
+            } else {
+                decodedImageData = BufferPool.ensureArraySize(decodedImageData, rawSize);
+                ByteBuffer source = buffer.duplicate();
+                source.position(0);
+                source.get(decodedImageData, 0, rawSize);
+                raw = decodedImageData;
+            }
+        }
+
+        if (lz4Codec == null) {
+            lz4Codec = new LZ4Codec();
+        }
+        int maxLength = LZ4Codec.maxCompressedLength(rawSize);
+        lz4Output = BufferPool.ensureArraySize(lz4Output, maxLength);
+        int length = lz4Codec.compress(raw, rawOffset, rawSize, lz4Output, 0);
+
+        stream.writeInt(width);
+        stream.writeInt(height);
+        stream.writeEnum(rawFormat);
+        stream.writeInt(rawSize);
+        stream.writeInt(length);
+        stream.write(lz4Output, 0, length);
+    }
+
+    /**
+     * Stores decoded compressed image in decodedImageData (BGR32 format)
+     *
+     * @return Size of image data in bytes
+     */
+    private int getDecodedImageBGR32() {
+        int pixels = width * height;
+        decodedImageData = BufferPool.ensureArraySize(decodedImageData, pixels * 4);
+        for (int i = 0, j = 0; i < pixels; i++, j += 4) {
+            int rgb = uncompressedPixels[i];
+            decodedImageData[j] = (byte)rgb;
+            decodedImageData[j + 1] = (byte)(rgb >> 8);
+            decodedImageData[j + 2] = (byte)(rgb >> 16);
+            decodedImageData[j + 3] = 0;
+        }
+        return pixels * 4;
     }
 
     @Override
     public void decompressNext(BinaryInputStream stream, String compressionType, int maxBytesToRead) throws Exception {
-        if (maxBytesToRead > compressedData.length) {
-            compressedData = new byte[(int)(maxBytesToRead * 1.2)];
+        roiEnabled = false; // region of interest is not transferred with compressed images
+        if (compressionType.equalsIgnoreCase("lz4")) {
+            width = stream.readInt();
+            height = stream.readInt();
+            format = stream.readEnum(Format.class);
+            int rawSize = stream.readInt();
+            int length = stream.readInt();
+            compressedData = BufferPool.ensureArraySize(compressedData, length);
+            stream.readFully(compressedData, 0, length);
+            imageData.clear();
+            imageData.setSize(rawSize);
+            ByteBuffer buffer = imageData.getBuffer().getBuffer();
+            if (buffer.hasArray()) {
+                LZ4Codec.decompress(compressedData, 0, length, buffer.array(), buffer.arrayOffset(), rawSize);
+            } else {
+                decodedImageData = BufferPool.ensureArraySize(decodedImageData, rawSize);
+                LZ4Codec.decompress(compressedData, 0, length, decodedImageData, 0, rawSize);
+                ByteBuffer dest = buffer.duplicate();
+                dest.position(0);
+                dest.put(decodedImageData, 0, rawSize);
+            }
+            widthStep = calculateWidthStep(rawSize);
+            compressed = false;
+            endAsyncDecoding();
+            blitterValid = false;
+            return;
+        }
+
+        if (asynchronousDecoding) {
+            AsyncImageDecoder decoder = getAsyncDecoder();
+            synchronized (this) {
+                if (!asyncDecoding) {
+                    asyncDecoding = true;
+                    asyncFrame = null;
+                    width = 0; // nothing to display until the first frame is decoded
+                    height = 0;
+                }
+            }
+            decoder.submit(stream, maxBytesToRead, compressionType);
+            compressedDataSize = 0;
+            compressed = true;
+            return;
         }
+
+        compressedData = BufferPool.ensureArraySize(compressedData, maxBytesToRead);
         stream.readFully(compressedData, 0, maxBytesToRead);
-        uncompressedImage = ImageIO.read(new ByteArrayInputStream(compressedData));
+        compressedDataSize = maxBytesToRead;
+        endAsyncDecoding();
+        if (decoder == null) {
+            decoder = new CompressedImageDecoder();
+        }
+        uncompressedImage = decoder.decode(compressedData, compressedDataSize, compressionType);
+        uncompressedPixels = decoder.getPixels();
         width = uncompressedImage.getWidth();
         height = uncompressedImage.getHeight();
         compressed = true;
+        compressedBlitter.markChanged();
+    }
+
+    /**
+     * Converts this image to another format.
+     * Rows are converted directly between the formats - for large images in parallel.
+     * Many conversions do not need to convert pixels to RGB at all - e.g. extracting the Y plane of YUV images
+     * for MONO8 or swapping channels of RGB/BGR formats.
+     * Target's buffer is reused (if large enough). Region of interest is transferred to target.
+     *
+     * @param targetFormat Format to convert to (MONO8, MONO16, RGB565, RGB24, BGR24, RGB32, BGR32, YUV444, YUV422 or UYVY422)
+     * @param target Image to store result in (must not be this image)
+     */
+    public void convertTo(Format targetFormat, Image target) {
+        if (target == this) {
+            throw new RuntimeException("Cannot convert image to itself");
+        }
+        updateDecodedFrame();
+        if (targetFormat == format && !compressed) {
+            target.copyFrom(this);
+            return;
+        }
+        switch (targetFormat) {
+        case MONO8:
+        case MONO16:
+        case RGB565:
+        case RGB24:
+        case BGR24:
+        case RGB32:
+        case BGR32:
+        case YUV444:
+        case YUV422:
+        case UYVY422:
+            break;
+        default:
+            throw new RuntimeException("Conversion to " + targetFormat + " is not supported");
+        }
+
+        // prepare target
+        target.compressed = false;
+        target.endAsyncDecoding();
+        target.width = width;
+        target.height = height;
+        target.format = targetFormat;
+        target.widthStep = target.calculateWidthStep(width, targetFormat, 1);
+        target.imageData.clear();
+        target.imageData.setSize(target.widthStep * height);
+        target.roiEnabled = roiEnabled;
+        target.roiX = roiX;
+        target.roiY = roiY;
+        target.roiWidth = roiWidth;
+        target.roiHeight = roiHeight;
+        target.blitterValid = false;
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+
+        // prepare source
+        BlackboardBlitter source = null;
+        if (!compressed) {
+            source = getImageBlitter();
+            source.prepareBlit();
+        }
+
+        ConversionTask task = new ConversionTask(source, target, 0, height);
+        if (Blittable.isParallelBlitting() && width * height >= Blittable.PARALLEL_BLIT_THRESHOLD && (source == null || source.isParallelBlittingSupported())) {
+            Blittable.getBlitPool().invoke(task);
+        } else {
+            task.convertRows();
+        }
+    }
+
+    /**
+     * Task that converts a band of rows to another format - splits itself until bands are small enough
+     */
+    private class ConversionTask extends RecursiveAction {
+
+        /** UID */
+        private static final long serialVersionUID = -6812305934317405728L;
+
+        /** Minimum number of pixels that are converted by a single task */
+        private static final int MIN_PIXELS_PER_TASK = 32 * 1024;
+
+        /** Blitter of source image (null if source image is compressed) */
+        private final BlackboardBlitter source;
+
+        /** Target image */
+        private final Image target;
+
+        /** Rows to convert */
+        private final int firstRow, rows;
+
+        ConversionTask(BlackboardBlitter source, Image target, int firstRow, int rows) {
+            this.source = source;
+            this.target = target;
+            this.firstRow = firstRow;
+            this.rows = rows;
+        }
+
+        @Override
+        protected void compute() {
+            if (rows > 1 && width * rows >= 2 * MIN_PIXELS_PER_TASK) {
+                int half = rows / 2;
+                invokeAll(new ConversionTask(source, target, firstRow, half), new ConversionTask(source, target, firstRow + half, rows - half));
+            } else {
+                convertRows();
+            }
+        }
+
+        /**
+         * Converts all rows of this task in the current thread
+         */
+        void convertRows() {
+            ByteBuffer targetBuffer = target.imageData.getBuffer().getBuffer();
+            int targetStep = target.widthStep;
+            int[] rgbRow = new int[width];
+            byte[] rowBuffer = targetBuffer.hasArray() ? null : new byte[targetStep];
+            for (int y = firstRow; y < firstRow + rows; y++) {
+                byte[] dest = rowBuffer != null ? rowBuffer : targetBuffer.array();
+                int destIndex = rowBuffer != null ? 0 : targetBuffer.arrayOffset() + y * targetStep;
+                convertRow(y, dest, destIndex, rgbRow);
+                if (rowBuffer != null) {
+                    ByteBuffer destination = targetBuffer.duplicate();
+                    destination.clear();
+                    destination.position(y * targetStep);
+                    destination.put(rowBuffer, 0, targetStep);
+                }
+            }
+        }
+
+        /**
+         * Converts single row
+         *
+         * @param y Row index
+         * @param dest Array to write converted row to
+         * @param destIndex Index of row's first byte in dest
+         * @param rgbRow Temporary buffer for RGB values (one per pixel)
+         */
+        private void convertRow(int y, byte[] dest, int destIndex, int[] rgbRow) {
+            Format targetFormat = target.format;
+            if (source != null) {
+                byte[] data = source.data;
+                int lineOffset = source.dataOffset + widthStep * y;
+
+                // direct conversions
+                if (targetFormat == Format.MONO8) {
+                    switch (format) {
+                    case YUV420P:
+                    case NV21:
+                        System.arraycopy(data, lineOffset, dest, destIndex, width);
+                        return;
+                    case YUV422:
+                    case UYVY422:
+                    case YUV444:
+                    case MONO16:
+                        int step = getBytesPerPixel(format);
+                        int index = lineOffset + (format == Format.UYVY422 || format == Format.MONO16 ? 1 : 0);
+                        for (int end = destIndex + width; destIndex < end; destIndex++, index += step) {
+                            dest[destIndex] = data[index];
+                        }
+                        return;
+                    default:
+                        break;
+                    }
+                }
+                int[] sourceOffsets = getChannelOffsets(format);
+                int[] targetOffsets = getChannelOffsets(targetFormat);
+                if (sourceOffsets != null && targetOffsets != null && targetFormat != Format.MONO8) {
+                    int sourceStep = getBytesPerPixel(format), targetStep = getBytesPerPixel(targetFormat);
+                    int r = lineOffset + sourceOffsets[0], g = lineOffset + sourceOffsets[1], b = lineOffset + sourceOffsets[2];
+                    int rOut = destIndex + targetOffsets[0], gOut = destIndex + targetOffsets[1], bOut = destIndex + targetOffsets[2];
+                    for (int i = 0; i < width; i++, r += sourceStep, g += sourceStep, b += sourceStep, rOut += targetStep, gOut += targetStep, bOut += targetStep) {
+                        dest[rOut] = data[r];
+                        dest[gOut] = data[g];
+                        dest[bOut] = data[b];
+                    }
+                    if (targetStep == 4) {
+                        for (int i = destIndex + 3, end = destIndex + width * 4; i < end; i += 4) {
+                            dest[i] = 0;
+                        }
+                    }
+                    return;
+                }
+
+                // conversion via RGB row
+                if (format == Format.MONO16) {
+                    PixelConverter.mono16ToRGB(data, lineOffset, rgbRow, 0, width);
+                } else {
+                    source.blitLinesToRGB(rgbRow, 0, width, 0, y, width, 1);
+                }
+            } else {
+                System.arraycopy(uncompressedPixels, y * width, rgbRow, 0, width);
+            }
+            packRGBRow(rgbRow, targetFormat, dest, destIndex);
+        }
+
+        /**
+         * Writes row of RGB values in target format
+         *
+         * @param rgbRow RGB values (one per pixel)
+         * @param targetFormat Target format
+         * @param dest Array to write row to
+         * @param destIndex Index of row's first byte in dest
+         */
+        private void packRGBRow(int[] rgbRow, Format targetFormat, byte[] dest, int destIndex) {
+            switch (targetFormat) {
+            case MONO8:
+                for (int i = 0; i < width; i++) {
+                    dest[destIndex + i] = (byte)YUVConverter.rgbToY(rgbRow[i]);
+                }
+                break;
+            case MONO16:
+                for (int i = 0; i < width; i++, destIndex += 2) {
+                    int value = YUVConverter.rgbToY(rgbRow[i]);
+                    dest[destIndex] = (byte)value;
+                    dest[destIndex + 1] = (byte)value;
+                }
+                break;
+            case RGB565:
+                for (int i = 0; i < width; i++, destIndex += 2) {
+                    int rgb = rgbRow[i];
+                    int value = ((rgb >> 8) & 0xF800) | ((rgb >> 5) & 0x07E0) | ((rgb >> 3) & 0x001F);
+                    dest[destIndex] = (byte)value;
+                    dest[destIndex + 1] = (byte)(value >> 8);
+                }
+                break;
+            case YUV444:
+                for (int i = 0; i < width; i++, destIndex += 3) {
+                    int rgb = rgbRow[i];
+                    dest[destIndex] = (byte)YUVConverter.rgbToY(rgb);
+                    dest[destIndex + 1] = (byte)YUVConverter.rgbToU(rgb);
+                    dest[destIndex + 2] = (byte)YUVConverter.rgbToV(rgb);
+                }
+                break;
+            case YUV422:
+            case UYVY422:
+                // chroma of each macro pixel is the average of both pixels' chroma
+                int yOffset = targetFormat == Format.YUV422 ? 0 : 1, uOffset = 1 - yOffset, vOffset = 3 - yOffset;
+                int pixel = 0;
+                for (; pixel + 1 < width; pixel += 2, destIndex += 4) {
+                    int rgb1 = rgbRow[pixel], rgb2 = rgbRow[pixel + 1];
+                    dest[destIndex + yOffset] = (byte)YUVConverter.rgbToY(rgb1);
+                    dest[destIndex + yOffset + 2] = (byte)YUVConverter.rgbToY(rgb2);
+                    dest[destIndex + uOffset] = (byte)((YUVConverter.rgbToU(rgb1) + YUVConverter.rgbToU(rgb2) + 1) >> 1);
+                    dest[destIndex + vOffset] = (byte)((YUVConverter.rgbToV(rgb1) + YUVConverter.rgbToV(rgb2) + 1) >> 1);
+                }
+                if (pixel < width) {
+                    // odd width: only two bytes of the last macro pixel are inside the row
+                    dest[destIndex + yOffset] = (byte)YUVConverter.rgbToY(rgbRow[pixel]);
+                    dest[destIndex + uOffset] = (byte)YUVConverter.rgbToU(rgbRow[pixel]);
+                }
+                break;
+            default:
+                int[] offsets = getChannelOffsets(targetFormat);
+                int step = getBytesPerPixel(targetFormat);
+                for (int i = 0; i < width; i++, destIndex += step) {
+                    int rgb = rgbRow[i];
+                    dest[destIndex + offsets[0]] = (byte)(rgb >> 16);
+                    dest[destIndex + offsets[1]] = (byte)(rgb >> 8);
+                    dest[destIndex + offsets[2]] = (byte)rgb;
+                    if (step == 4) {
+                        dest[destIndex + 3] = 0;
+                    }
+                }
+                break;
+            }
+        }
+    }
+
+    /**
+     * @param format Image format
+     * @return Offsets of red, green and blue value in pixel for formats with one byte per channel (gray formats: same offset) - null for other formats
+     */
+    private static int[] getChannelOffsets(Format format) {
+        switch (format) {
+        case RGB24:
+        case RGB32:
+            return new int[] {0, 1, 2};
+        case BGR24:
+        case BGR32:
+            return new int[] {2, 1, 0};
+        case MONO8:
+            return new int[] {0, 0, 0};
+        default:
+            return null;
+        }
     }
 
     @Override
     public void copyFrom(Image source) {
+        source.updateDecodedFrame();
+        endAsyncDecoding();
         compressed = source.compressed;
         width = source.width;
         height = source.height;
         format = source.format;
+        roiEnabled = source.roiEnabled;
+        roiX = source.roiX;
+        roiY = source.roiY;
+        roiWidth = source.roiWidth;
+        roiHeight = source.roiHeight;
 
         // Read image data
         if (compressed) {
-            if (compressedData.length != source.compressedData.length) {
-                compressedData = new byte[source.compressedData.length];
+            compressedData = BufferPool.ensureArraySize(compressedData, source.compressedDataSize);
+            System.arraycopy(source.compressedData, 0, compressedData, 0, source.compressedDataSize);
+            compressedDataSize = source.compressedDataSize;
+            if (uncompressedImage.getWidth() != width || uncompressedImage.getHeight() != height) {
+                uncompressedImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+                uncompressedPixels = ((DataBufferInt)uncompressedImage.getRaster().getDataBuffer()).getData();
             }
-            System.arraycopy(source.compressedData, 0, compressedData, 0, source.compressedData.length);
-            ColorModel colorModel = source.uncompressedImage.getColorModel();
-            uncompressedImage = new BufferedImage(colorModel, source.uncompressedImage.copyData(null), colorModel.isAlphaPremultiplied(), null);
+            System.arraycopy(source.uncompressedPixels, 0, uncompressedPixels, 0, width * height);
+            compressedBlitter.markChanged();
         } else {
             imageData.copyFrom(source.imageData);
         }
 
         // calculate internal variables
-        widthStep = calculateWidthStep(width, format, 1);
+        widthStep = source.widthStep;
         lastType = null;
-        blitter = createBlittable();
+        blitterValid = false;
+    }
+
+    /**
+     * Output stream for compressed data - providing access to its buffer
+     */
+    private static class CompressionOutputStream extends ByteArrayOutputStream {
+
+        public byte[] getBuffer() {
+            return buf;
+        }
     }
 
     @Override
     public ByteBuffer getByteBuffer() {
-        return imageData.getBuffer().getBuffer();
+        Rectangle region = getCropRegion();
+        if (region == null && widthStep != calculateWidthStep(width, format, 1) && getBytesPerPixel(format) > 0) {
+            region = new Rectangle(0, 0, width, height); // remove padding
+        }
+        if (region != null) {
+            preparePackedData(region, region.width * getBytesPerPixel(format));
+            return packedData;
+        }
+        return imageData.getSharedBuffer();
     }
 
     @Override
@@ -825,8 +2069,9 @@ public class Image implements HasBlittable, PaintablePortData, Compressible, Cop
 
     @Override
     public int[] getArrayDimensions() {
-        dimensions[0] = width;
-        dimensions[1] = height;
+        Rectangle region = getCropRegion();
+        dimensions[0] = region != null ? region.width : width;
+        dimensions[1] = region != null ? region.height : height;
         return dimensions;
     }
 }
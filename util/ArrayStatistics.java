@@ -0,0 +1,618 @@
+//
+// You received this file as part of Finroc
+// A framework for intelligent robot control
+//
+// Copyright (C) Finroc GbR (finroc.org)
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+//
+//----------------------------------------------------------------------
+package org.finroc.plugins.data_types.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.RecursiveAction;
+
+import org.finroc.plugins.data_types.Blittable;
+import org.rrlib.serialization.ArrayBuffer;
+import org.rrlib.serialization.ArrayBuffer.AttributeType;
+import org.rrlib.serialization.ArrayBuffer.Channel;
+
+/**
+ * Computes statistics (minimum, maximum, mean, standard deviation and histogram) of the channels of an ArrayBuffer
+ * (e.g. an Image or DistanceData) - directly on its byte buffer, in a single pass over the data.
+ *
+ * Large arrays are processed in parallel (if enabled). Optionally, only every n-th element in each
+ * dimension is taken into account (e.g. to monitor exposure of large images cheaply).
+ * NaN and infinite values are ignored (and counted as invalid).
+ */
+public class ArrayStatistics {
+
+    /** Minimum number of samples that are processed by a single task */
+    private static final int MIN_SAMPLES_PER_TASK = 64 * 1024;
+
+    /** Length of virtual rows that one-dimensional arrays are split into (multiplied by step) */
+    private static final int VIRTUAL_ROW_LENGTH = 4096;
+
+    /**
+     * Settings for computing statistics
+     */
+    public static class Settings {
+
+        /** Number of histogram bins */
+        private int histogramBins = 256;
+
+        /** Value range of histogram (NaN: range of channel's type - no histogram for int, float and double channels) */
+        private double histogramMin = Double.NaN, histogramMax = Double.NaN;
+
+        /** Only every step-th element in each dimension is taken into account */
+        private int step = 1;
+
+        /** Process large arrays in parallel? */
+        private boolean parallel = true;
+
+        /**
+         * @param bins Number of histogram bins (0 for no histogram)
+         * @return This object
+         */
+        public Settings setHistogramBins(int bins) {
+            histogramBins = Math.max(0, bins);
+            return this;
+        }
+
+        /**
+         * @param min Lower bound of histogram range (values outside the range are not counted in histogram)
+         * @param max Upper bound of histogram range (inclusive)
+         * @return This object
+         */
+        public Settings setHistogramRange(double min, double max) {
+            if (!(max > min)) {
+                throw new RuntimeException("Invalid histogram range: " + min + " - " + max);
+            }
+            histogramMin = min;
+            histogramMax = max;
+            return this;
+        }
+
+        /**
+         * @param step Only every step-th element in each dimension is taken into account (1 for all elements)
+         * @return This object
+         */
+        public Settings setStep(int step) {
+            this.step = Math.max(1, step);
+            return this;
+        }
+
+        /**
+         * @param parallel Process large arrays in parallel?
+         * @return This object
+         */
+        public Settings setParallel(boolean parallel) {
+            this.parallel = parallel;
+            return this;
+        }
+    }
+
+    /**
+     * Statistics of a single channel
+     */
+    public static class ChannelStatistics {
+
+        /** Channel name */
+        private final String name;
+
+        /** Number of valid and invalid values */
+        private long count, invalidCount;
+
+        /** Minimum and maximum value */
+        private double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+
+        /** Sum of values and of squared values */
+        private double sum, sumOfSquares;
+
+        /** Histogram (null if no histogram was computed) */
+        private final int[] histogram;
+
+        /** Value range of histogram */
+        private final double histogramMin, histogramMax;
+
+        private ChannelStatistics(String name, int bins, double histogramMin, double histogramMax) {
+            this.name = name;
+            this.histogram = bins > 0 && !Double.isNaN(histogramMin) ? new int[bins] : null;
+            this.histogramMin = histogramMin;
+            this.histogramMax = histogramMax;
+        }
+
+        /**
+         * @return Empty statistics with the same name and histogram layout
+         */
+        private ChannelStatistics createEmptyCopy() {
+            return new ChannelStatistics(name, histogram != null ? histogram.length : 0, histogramMin, histogramMax);
+        }
+
+        /**
+         * Adds statistics of other (disjoint) part of array
+         */
+        private void add(ChannelStatistics other) {
+            count += other.count;
+            invalidCount += other.invalidCount;
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+            sum += other.sum;
+            sumOfSquares += other.sumOfSquares;
+            if (histogram != null) {
+                for (int i = 0; i < histogram.length; i++) {
+                    histogram[i] += other.histogram[i];
+                }
+            }
+        }
+
+        /**
+         * @return Channel name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return Number of (valid) values
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return Number of NaN and infinite values
+         */
+        public long getInvalidCount() {
+            return invalidCount;
+        }
+
+        /**
+         * @return Minimum value (NaN if there are no values)
+         */
+        public double getMin() {
+            return count > 0 ? min : Double.NaN;
+        }
+
+        /**
+         * @return Maximum value (NaN if there are no values)
+         */
+        public double getMax() {
+            return count > 0 ? max : Double.NaN;
+        }
+
+        /**
+         * @return Mean value (NaN if there are no values)
+         */
+        public double getMean() {
+            return count > 0 ? sum / count : Double.NaN;
+        }
+
+        /**
+         * @return Standard deviation of values (NaN if there are no values)
+         */
+        public double getStandardDeviation() {
+            if (count == 0) {
+                return Double.NaN;
+            }
+            double mean = sum / count;
+            return Math.sqrt(Math.max(0, sumOfSquares / count - mean * mean));
+        }
+
+        /**
+         * @return Histogram (null if no histogram was computed)
+         */
+        public int[] getHistogram() {
+            return histogram;
+        }
+
+        /**
+         * @return Lower bound of histogram range (value of first bin's lower end)
+         */
+        public double getHistogramMin() {
+            return histogramMin;
+        }
+
+        /**
+         * @return Upper bound of histogram range (inclusive)
+         */
+        public double getHistogramMax() {
+            return histogramMax;
+        }
+
+        /**
+         * @param bin Histogram bin
+         * @return Count of histogram bin divided by number of values
+         */
+        public double getHistogramFraction(int bin) {
+            return count > 0 ? histogram[bin] / (double)count : 0;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": min " + getMin() + " max " + getMax() + " mean " + getMean() + " stddev " + getStandardDeviation() + " (" + count + " values)";
+        }
+    }
+
+    /**
+     * Computes statistics of all channels of array buffer with default settings
+     *
+     * @param buffer Array buffer (e.g. Image or DistanceData)
+     * @return Statistics of each channel (in order of buffer.getChannels())
+     */
+    public static ChannelStatistics[] compute(ArrayBuffer buffer) {
+        return compute(buffer, new Settings());
+    }
+
+    /**
+     * Computes statistics of all channels of array buffer
+     *
+     * @param buffer Array buffer (e.g. Image or DistanceData)
+     * @param settings Settings
+     * @return Statistics of each channel (in order of buffer.getChannels())
+     */
+    public static ChannelStatistics[] compute(ArrayBuffer buffer, Settings settings) {
+        Channel[] channels = buffer.getChannels();
+        ByteBuffer data = buffer.getByteBuffer();
+        int[] dimensions = buffer.getArrayDimensions();
+        ChannelStatistics[] result = new ChannelStatistics[channels.length];
+        long elements = 1;
+        for (int dimension : dimensions) {
+            elements *= dimension;
+        }
+
+        // arrays are processed as rows of elements (one-dimensional arrays are split into virtual rows)
+        int rowLength, rowStep;
+        if (dimensions.length >= 2) {
+            rowLength = dimensions[0];
+            rowStep = settings.step;
+        } else {
+            rowLength = VIRTUAL_ROW_LENGTH * settings.step;
+            rowStep = 1;
+        }
+        int rows = rowLength > 0 ? (int)((elements + rowLength - 1) / rowLength) : 0;
+        int sampledRows = (rows + rowStep - 1) / rowStep;
+        long samplesPerRow = (Math.min(rowLength, elements) + settings.step - 1) / settings.step;
+
+        for (int i = 0; i < channels.length; i++) {
+            Channel channel = channels[i];
+            double histogramMin = settings.histogramMin, histogramMax = settings.histogramMax;
+            if (Double.isNaN(histogramMin)) {
+                switch (channel.getType()) {
+                case BYTE:
+                    histogramMin = Byte.MIN_VALUE;
+                    histogramMax = Byte.MAX_VALUE;
+                    break;
+                case UNSIGNED_BYTE:
+                    histogramMin = 0;
+                    histogramMax = 0xFF;
+                    break;
+                case SHORT:
+                    histogramMin = Short.MIN_VALUE;
+                    histogramMax = Short.MAX_VALUE;
+                    break;
+                case UNSIGNED_SHORT:
+                    histogramMin = 0;
+                    histogramMax = 0xFFFF;
+                    break;
+                default:
+                    break;
+                }
+            }
+            ScanTask task = new ScanTask(data, channel, new ChannelStatistics(channel.getName(), settings.histogramBins, histogramMin, histogramMax), elements, rowLength, rowStep, settings.step, 0, sampledRows);
+            if (settings.parallel && Blittable.isParallelBlitting() && sampledRows > 1 && sampledRows * samplesPerRow >= 2 * MIN_SAMPLES_PER_TASK) {
+                Blittable.getBlitPool().invoke(task);
+            } else {
+                task.scanRows();
+            }
+            result[i] = task.statistics;
+        }
+        return result;
+    }
+
+    /**
+     * Task that computes statistics of a band of (sampled) rows - splits itself until bands are small enough
+     */
+    private static class ScanTask extends RecursiveAction {
+
+        /** UID */
+        private static final long serialVersionUID = 6318805537271405619L;
+
+        final ByteBuffer data;
+        final Channel channel;
+        final ChannelStatistics statistics;
+        final long elements;
+        final int rowLength, rowStep, columnStep, firstSampledRow, sampledRows;
+
+        ScanTask(ByteBuffer data, Channel channel, ChannelStatistics statistics, long elements, int rowLength, int rowStep, int columnStep, int firstSampledRow, int sampledRows) {
+            this.data = data;
+            this.channel = channel;
+            this.statistics = statistics;
+            this.elements = elements;
+            this.rowLength = rowLength;
+            this.rowStep = rowStep;
+            this.columnStep = columnStep;
+            this.firstSampledRow = firstSampledRow;
+            this.sampledRows = sampledRows;
+        }
+
+        @Override
+        protected void compute() {
+            if (sampledRows > 1 && (long)sampledRows * Math.min(rowLength, elements) / columnStep >= 2 * MIN_SAMPLES_PER_TASK) {
+                int half = sampledRows / 2;
+                ScanTask second = new ScanTask(data, channel, statistics.createEmptyCopy(), elements, rowLength, rowStep, columnStep, firstSampledRow + half, sampledRows - half);
+                ScanTask first = new ScanTask(data, channel, statistics, elements, rowLength, rowStep, columnStep, firstSampledRow, half);
+                invokeAll(first, second);
+                statistics.add(second.statistics);
+            } else {
+                scanRows();
+            }
+        }
+
+        /** Accumulated results of rows scanned so far */
+        private double min, max, sum, sumOfSquares;
+        private long count, invalidCount;
+
+        /** Histogram (null if none is computed) - with number of bins and mapping of values to bins */
+        private int[] histogram;
+        private int bins;
+        private double histogramMin, histogramMax, histogramScale;
+
+        /** Backing array of data (null if data has no accessible array) - and offset of data in it */
+        private byte[] array;
+        private int arrayOffset;
+
+        /**
+         * Scans all rows of this task in the current thread.
+         * The channel's type is dispatched once per row - every type has its own tight loop over the row's elements.
+         */
+        void scanRows() {
+            AttributeType type = channel.getType();
+            int stride = channel.getStride();
+            histogram = statistics.histogram;
+            bins = histogram != null ? histogram.length : 0;
+            if (bins == 0) {
+                histogram = null;
+            }
+            boolean integer = type != AttributeType.FLOAT && type != AttributeType.DOUBLE;
+            histogramMin = statistics.histogramMin;
+            histogramMax = statistics.histogramMax;
+            histogramScale = bins / (histogramMax - histogramMin + (integer ? 1 : 0));
+            min = statistics.min;
+            max = statistics.max;
+            array = data.hasArray() ? data.array() : null;
+            arrayOffset = data.hasArray() ? data.arrayOffset() : 0;
+
+            for (int sampledRow = firstSampledRow, end = firstSampledRow + sampledRows; sampledRow < end; sampledRow++) {
+                long firstElement = (long)sampledRow * rowStep * rowLength;
+                long endElement = Math.min(elements, firstElement + rowLength);
+                if (endElement <= firstElement) {
+                    continue;
+                }
+                int samples = (int)((endElement - firstElement + columnStep - 1) / columnStep);
+                int index = (int)(channel.getOffset() + firstElement * stride);
+                int indexStep = stride * columnStep;
+                switch (type) {
+                case BYTE:
+                    scanBytes(index, indexStep, samples, -1);
+                    break;
+                case UNSIGNED_BYTE:
+                    scanBytes(index, indexStep, samples, 0xFF);
+                    break;
+                case SHORT:
+                    scanShorts(index, indexStep, samples, -1);
+                    break;
+                case UNSIGNED_SHORT:
+                    scanShorts(index, indexStep, samples, 0xFFFF);
+                    break;
+                case INT:
+                    scanInts(index, indexStep, samples, -1L);
+                    break;
+                case UNSIGNED_INT:
+                    scanInts(index, indexStep, samples, 0xFFFFFFFFL);
+                    break;
+                case FLOAT:
+                    scanFloats(index, indexStep, samples);
+                    break;
+                default:
+                    scanDoubles(index, indexStep, samples);
+                    break;
+                }
+            }
+
+            statistics.count += count;
+            statistics.invalidCount += invalidCount;
+            statistics.min = min;
+            statistics.max = max;
+            statistics.sum += sum;
+            statistics.sumOfSquares += sumOfSquares;
+        }
+
+        /**
+         * Scans elements of 8 bit channel in one row
+         *
+         * @param index Index of first element in data
+         * @param indexStep Distance of scanned elements in data (in bytes)
+         * @param samples Number of elements to scan
+         * @param mask Mask applied to values (0xFF for unsigned values, -1 for signed values)
+         */
+        private void scanBytes(int index, int indexStep, int samples, int mask) {
+            int rowMin = Integer.MAX_VALUE, rowMax = Integer.MIN_VALUE;
+            long rowSum = 0, rowSumOfSquares = 0;
+            if (array != null) {
+                for (int i = arrayOffset + index, end = i + samples * indexStep; i < end; i += indexStep) {
+                    int value = array[i] & mask;
+                    rowMin = Math.min(rowMin, value);
+                    rowMax = Math.max(rowMax, value);
+                    rowSum += value;
+                    rowSumOfSquares += value * value;
+                    if (histogram != null) {
+                        addToHistogram(value);
+                    }
+                }
+            } else {
+                for (int i = index, end = i + samples * indexStep; i < end; i += indexStep) {
+                    int value = data.get(i) & mask;
+                    rowMin = Math.min(rowMin, value);
+                    rowMax = Math.max(rowMax, value);
+                    rowSum += value;
+                    rowSumOfSquares += value * value;
+                    if (histogram != null) {
+                        addToHistogram(value);
+                    }
+                }
+            }
+            addRow(samples, rowMin, rowMax, rowSum, rowSumOfSquares);
+        }
+
+        /**
+         * Scans elements of 16 bit channel in one row
+         *
+         * @param index Index of first element in data
+         * @param indexStep Distance of scanned elements in data (in bytes)
+         * @param samples Number of elements to scan
+         * @param mask Mask applied to values (0xFFFF for unsigned values, -1 for signed values)
+         */
+        private void scanShorts(int index, int indexStep, int samples, int mask) {
+            int rowMin = Integer.MAX_VALUE, rowMax = Integer.MIN_VALUE;
+            long rowSum = 0, rowSumOfSquares = 0;
+            for (int i = index, end = i + samples * indexStep; i < end; i += indexStep) {
+                int value = data.getShort(i) & mask;
+                rowMin = Math.min(rowMin, value);
+                rowMax = Math.max(rowMax, value);
+                rowSum += value;
+                rowSumOfSquares += (long)value * value;
+                if (histogram != null) {
+                    addToHistogram(value);
+                }
+            }
+            addRow(samples, rowMin, rowMax, rowSum, rowSumOfSquares);
+        }
+
+        /**
+         * Scans elements of 32 bit integer channel in one row
+         *
+         * @param index Index of first element in data
+         * @param indexStep Distance of scanned elements in data (in bytes)
+         * @param samples Number of elements to scan
+         * @param mask Mask applied to values (0xFFFFFFFFL for unsigned values, -1 for signed values)
+         */
+        private void scanInts(int index, int indexStep, int samples, long mask) {
+            long rowMin = Long.MAX_VALUE, rowMax = Long.MIN_VALUE, rowSum = 0;
+            double rowSumOfSquares = 0;
+            for (int i = index, end = i + samples * indexStep; i < end; i += indexStep) {
+                long value = data.getInt(i) & mask;
+                rowMin = Math.min(rowMin, value);
+                rowMax = Math.max(rowMax, value);
+                rowSum += value;
+                rowSumOfSquares += (double)value * value;
+                if (histogram != null) {
+                    addToHistogram(value);
+                }
+            }
+            count += samples;
+            min = Math.min(min, rowMin);
+            max = Math.max(max, rowMax);
+            sum += rowSum;
+            sumOfSquares += rowSumOfSquares;
+        }
+
+        /**
+         * Scans elements of float channel in one row (NaN and infinite values are counted as invalid)
+         *
+         * @param index Index of first element in data
+         * @param indexStep Distance of scanned elements in data (in bytes)
+         * @param samples Number of elements to scan
+         */
+        private void scanFloats(int index, int indexStep, int samples) {
+            double rowMin = min, rowMax = max, rowSum = 0, rowSumOfSquares = 0;
+            int valid = 0;
+            for (int i = index, end = i + samples * indexStep; i < end; i += indexStep) {
+                float value = data.getFloat(i);
+                if (value - value != 0) {
+                    continue; // NaN or infinite
+                }
+                valid++;
+                rowMin = Math.min(rowMin, value);
+                rowMax = Math.max(rowMax, value);
+                rowSum += value;
+                rowSumOfSquares += (double)value * value;
+                if (histogram != null) {
+                    addToHistogram(value);
+                }
+            }
+            addFloatingPointRow(samples, valid, rowMin, rowMax, rowSum, rowSumOfSquares);
+        }
+
+        /**
+         * Scans elements of double channel in one row (NaN and infinite values are counted as invalid)
+         *
+         * @param index Index of first element in data
+         * @param indexStep Distance of scanned elements in data (in bytes)
+         * @param samples Number of elements to scan
+         */
+        private void scanDoubles(int index, int indexStep, int samples) {
+            double rowMin = min, rowMax = max, rowSum = 0, rowSumOfSquares = 0;
+            int valid = 0;
+            for (int i = index, end = i + samples * indexStep; i < end; i += indexStep) {
+                double value = data.getDouble(i);
+                if (value - value != 0) {
+                    continue; // NaN or infinite
+                }
+                valid++;
+                rowMin = Math.min(rowMin, value);
+                rowMax = Math.max(rowMax, value);
+                rowSum += value;
+                rowSumOfSquares += value * value;
+                if (histogram != null) {
+                    addToHistogram(value);
+                }
+            }
+            addFloatingPointRow(samples, valid, rowMin, rowMax, rowSum, rowSumOfSquares);
+        }
+
+        /**
+         * Adds results of row with 8 or 16 bit integer values
+         */
+        private void addRow(int samples, int rowMin, int rowMax, long rowSum, long rowSumOfSquares) {
+            count += samples;
+            min = Math.min(min, rowMin);
+            max = Math.max(max, rowMax);
+            sum += rowSum;
+            sumOfSquares += rowSumOfSquares;
+        }
+
+        /**
+         * Adds results of row with floating point values
+         */
+        private void addFloatingPointRow(int samples, int valid, double rowMin, double rowMax, double rowSum, double rowSumOfSquares) {
+            count += valid;
+            invalidCount += samples - valid;
+            min = rowMin;
+            max = rowMax;
+            sum += rowSum;
+            sumOfSquares += rowSumOfSquares;
+        }
+
+        /**
+         * @param value Value to count in histogram (if it is inside histogram range)
+         */
+        private void addToHistogram(double value) {
+            if (value >= histogramMin && value <= histogramMax) {
+                histogram[Math.min((int)((value - histogramMin) * histogramScale), bins - 1)]++;
+            }
+        }
+    }
+}
@@ -0,0 +1,263 @@
+//
+// You received this file as part of Finroc
+// A framework for intelligent robot control
+//
+// Copyright (C) Finroc GbR (finroc.org)
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+//
+//----------------------------------------------------------------------
+package org.finroc.plugins.data_types.util;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.rrlib.logging.Log;
+import org.rrlib.logging.LogLevel;
+import org.rrlib.serialization.BinaryInputStream;
+
+/**
+ * Decodes a stream of compressed images (JPEG, PNG, ...) in the background.
+ *
+ * submit() only copies the compressed bytes - decoding is done by a small shared pool of worker threads.
+ * Each decoder has at most one pending frame: if a newer frame is submitted before decoding
+ * of the pending one started, the pending frame is dropped.
+ * Decoded frames are written to a small set of reused frame buffers. Consumers acquire the most recently
+ * decoded frame via acquireLatestFrame() and release it when they no longer use it - frames are never decoded
+ * into buffers that are acquired or contain the latest frame (so a consumer holding one frame gets triple buffering).
+ * Listeners are notified whenever a frame has been decoded (e.g. to trigger repainting).
+ *
+ * Frames are only dropped in favour of newer frames submitted to the same decoder - so all buffers
+ * receiving the same stream (e.g. the pooled buffers of a port) should share one decoder.
+ */
+public class AsyncImageDecoder implements Runnable {
+
+    /** Decoded frame */
+    public static class Frame {
+
+        /** Decoded image (TYPE_INT_RGB) */
+        public final BufferedImage image;
+
+        /** Pixel buffer of image (one int per pixel, no padding) */
+        public final int[] pixels;
+
+        /** Image dimensions */
+        public final int width, height;
+
+        /** Frame buffer containing frame */
+        private final FrameBuffer buffer;
+
+        private Frame(BufferedImage image, int[] pixels, FrameBuffer buffer) {
+            this.image = image;
+            this.pixels = pixels;
+            this.buffer = buffer;
+            this.width = image.getWidth();
+            this.height = image.getHeight();
+        }
+    }
+
+    /** Reused frame buffer - with decoder writing to it */
+    private static class FrameBuffer {
+
+        /** Decoder (decodes frames to its reused image) */
+        final CompressedImageDecoder decoder = new CompressedImageDecoder();
+
+        /** Number of consumers that acquired frame in this buffer */
+        int users;
+    }
+
+    /** Receives notifications on decoded frames */
+    public interface Listener {
+
+        /**
+         * Called by a worker thread whenever a frame has been decoded
+         *
+         * @param decoder Decoder that decoded frame (getLatestFrame() returns the new frame)
+         */
+        public void frameDecoded(AsyncImageDecoder decoder);
+    }
+
+    /** Worker threads shared by all decoders */
+    private static final ThreadPoolExecutor pool;
+
+    static {
+        int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+        pool = new ThreadPoolExecutor(threads, threads, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Image Decoder");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    /** Compressed data of pending frame and frame currently being decoded (buffers are swapped) */
+    private byte[] pendingData = new byte[0], decodingData = new byte[0];
+    private int pendingSize;
+    private String pendingFormat;
+
+    /** Is there a pending frame? */
+    private boolean pending;
+
+    /** Is this decoder queued or running in pool? */
+    private boolean scheduled;
+
+    /** Frame buffers (more are created if all are in use) */
+    private final ArrayList<FrameBuffer> frameBuffers = new ArrayList<FrameBuffer>();
+
+    /** Listeners notified on decoded frames */
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    /** Most recently decoded frame */
+    private volatile Frame latestFrame;
+
+    /** Number of frames that were dropped, because newer frames arrived before they were decoded */
+    private volatile long droppedFrames;
+
+    /**
+     * Reads compressed frame from stream and schedules it for decoding
+     *
+     * @param stream Stream to read from
+     * @param length Number of bytes to read
+     * @param format Format name (e.g. "jpeg" or "png")
+     */
+    public synchronized void submit(BinaryInputStream stream, int length, String format) {
+        pendingData = BufferPool.ensureArraySize(pendingData, length);
+        stream.readFully(pendingData, 0, length);
+        if (pending) {
+            droppedFrames++;
+        }
+        pendingSize = length;
+        pendingFormat = format;
+        pending = true;
+        if (!scheduled) {
+            scheduled = true;
+            pool.execute(this);
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            int size;
+            String format;
+            FrameBuffer buffer;
+            synchronized (this) {
+                if (!pending) {
+                    scheduled = false;
+                    return;
+                }
+                byte[] temp = decodingData;
+                decodingData = pendingData;
+                pendingData = temp;
+                size = pendingSize;
+                format = pendingFormat;
+                pending = false;
+                buffer = getUnusedFrameBuffer();
+            }
+
+            try {
+                BufferedImage image = buffer.decoder.decode(decodingData, size, format);
+                latestFrame = new Frame(image, buffer.decoder.getPixels(), buffer);
+            } catch (Exception e) {
+                Log.log(LogLevel.WARNING, this, "Decoding image failed: ", e);
+                continue;
+            }
+            for (Listener listener : listeners) {
+                try {
+                    listener.frameDecoded(this);
+                } catch (Exception e) {
+                    Log.log(LogLevel.WARNING, this, "Listener failed: ", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Frame buffer that is neither acquired by a consumer nor contains the latest frame
+     */
+    private FrameBuffer getUnusedFrameBuffer() {
+        Frame latest = latestFrame;
+        for (FrameBuffer buffer : frameBuffers) {
+            if (buffer.users == 0 && (latest == null || latest.buffer != buffer)) {
+                return buffer;
+            }
+        }
+        FrameBuffer buffer = new FrameBuffer();
+        frameBuffers.add(buffer);
+        return buffer;
+    }
+
+    /**
+     * @return Most recently decoded frame (null if no frame has been decoded yet).
+     * Only for checking whether a new frame is available - pixels may only be accessed after acquireLatestFrame().
+     */
+    public Frame getLatestFrame() {
+        return latestFrame;
+    }
+
+    /**
+     * Acquires most recently decoded frame: its buffer is not reused until the frame is released.
+     *
+     * @return Most recently decoded frame (null if no frame has been decoded yet)
+     */
+    public synchronized Frame acquireLatestFrame() {
+        Frame frame = latestFrame;
+        if (frame != null) {
+            frame.buffer.users++;
+        }
+        return frame;
+    }
+
+    /**
+     * Releases frame obtained via acquireLatestFrame() - its buffer may then be reused for decoding
+     *
+     * @param frame Frame to release
+     */
+    public synchronized void release(Frame frame) {
+        if (frame.buffer.users <= 0) {
+            throw new RuntimeException("Frame was released more often than acquired");
+        }
+        frame.buffer.users--;
+    }
+
+    /**
+     * @param listener Listener to notify whenever a frame has been decoded
+     */
+    public void addListener(Listener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    /**
+     * @param listener Listener to remove
+     */
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return Number of frames that were dropped, because newer frames arrived before they were decoded
+     */
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+}
@@ -0,0 +1,280 @@
+//
+// You received this file as part of Finroc
+// A framework for intelligent robot control
+//
+// Copyright (C) Finroc GbR (finroc.org)
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+//
+//----------------------------------------------------------------------
+package org.finroc.plugins.data_types.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of byte arrays and direct (off-heap) byte buffers shared by all payload types in this plugin.
+ *
+ * Buffers are managed in power-of-two size classes, so buffers released by one
+ * port data buffer can be reused by another one with a slightly different payload size.
+ * Buffers that have not been reused for IDLE_TIMEOUT milliseconds are evicted.
+ * Thread-safe.
+ */
+public class BufferPool {
+
+    /** Smallest size class (log2 of capacity) */
+    private static final int MIN_SIZE_CLASS = 12;
+
+    /** Largest size class (log2 of capacity) */
+    private static final int MAX_SIZE_CLASS = 30;
+
+    /** Maximum number of unused buffers kept per size class */
+    private static final int MAX_BUFFERS_PER_CLASS = 8;
+
+    /** Unused buffers are evicted after this time (in ms) */
+    public static final long IDLE_TIMEOUT = 10000;
+
+    /** Unused byte arrays and direct buffers */
+    private static final SizeClasses arrays = new SizeClasses(), directBuffers = new SizeClasses();
+
+    /** Statistics: number of requests served from pool / requiring allocation, bytes in unused pooled buffers */
+    private static final AtomicLong hits = new AtomicLong(), misses = new AtomicLong(), bytesRetained = new AtomicLong();
+
+    /** Time of last eviction check */
+    private static volatile long lastEvictionCheck = System.currentTimeMillis();
+
+    /**
+     * Obtains byte array from pool (or allocates a new one)
+     *
+     * @param size Minimum size
+     * @return Array with size of size class (content is undefined)
+     */
+    public static byte[] acquireArray(int size) {
+        int sizeClass = getSizeClass(size);
+        byte[] result = (byte[])arrays.poll(sizeClass);
+        return result != null ? result : new byte[getSizeClassCapacity(size)];
+    }
+
+    /**
+     * Returns byte array to pool
+     *
+     * @param array Array obtained via acquireArray() (must not be used by caller anymore). Arrays of other sizes are ignored.
+     */
+    public static void releaseArray(byte[] array) {
+        arrays.offer(array, array.length);
+    }
+
+    /**
+     * Ensures that array has at least the specified size - replacing it with a pooled array if necessary
+     * (content is not preserved)
+     *
+     * @param array Current array
+     * @param size Required size
+     * @return Array with at least the required size (either 'array' or a new one - in this case, 'array' is returned to pool)
+     */
+    public static byte[] ensureArraySize(byte[] array, int size) {
+        if (array.length >= size) {
+            return array;
+        }
+        releaseArray(array);
+        return acquireArray(size);
+    }
+
+    /**
+     * Obtains direct buffer from pool (or allocates a new one)
+     *
+     * @param size Minimum capacity
+     * @return Little endian direct buffer with capacity of size class (position 0, limit at capacity)
+     */
+    public static ByteBuffer acquireDirect(int size) {
+        ByteBuffer buffer = (ByteBuffer)directBuffers.poll(getSizeClass(size));
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(getSizeClassCapacity(size));
+        }
+        buffer.clear();
+        return buffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Returns direct buffer to pool
+     *
+     * @param buffer Buffer obtained via acquireDirect() (must not be used by caller anymore)
+     */
+    public static void releaseDirect(ByteBuffer buffer) {
+        directBuffers.offer(buffer, buffer.capacity());
+    }
+
+    /**
+     * @param size Buffer size
+     * @return Capacity of buffers in size class for buffers with specified minimum size
+     */
+    public static int getSizeClassCapacity(int size) {
+        int sizeClass = getSizeClass(size);
+        return sizeClass <= MAX_SIZE_CLASS ? 1 << sizeClass : size;
+    }
+
+    /**
+     * @param size Buffer size
+     * @return Size class of buffer with specified minimum size (log2 of its capacity)
+     */
+    public static int getSizeClass(int size) {
+        if (size <= (1 << MIN_SIZE_CLASS)) {
+            return MIN_SIZE_CLASS;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+
+    /**
+     * @return Number of requests that were served with a pooled buffer
+     */
+    public static long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return Number of requests that required allocating a new buffer
+     */
+    public static long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return Number of bytes in unused buffers currently retained by pool
+     */
+    public static long getBytesRetained() {
+        return bytesRetained.get();
+    }
+
+    /**
+     * Removes all unused buffers from pool
+     */
+    public static void clear() {
+        arrays.evict(Long.MAX_VALUE);
+        directBuffers.evict(Long.MAX_VALUE);
+    }
+
+    /**
+     * Evicts idle buffers (at most once per second)
+     */
+    private static void evictIdleBuffers() {
+        long now = System.currentTimeMillis();
+        if (now - lastEvictionCheck < 1000) {
+            return;
+        }
+        lastEvictionCheck = now;
+        arrays.evict(now - IDLE_TIMEOUT);
+        directBuffers.evict(now - IDLE_TIMEOUT);
+    }
+
+    /**
+     * Unused buffer in pool
+     */
+    private static class PooledBuffer {
+
+        /** Buffer (byte array or direct buffer) */
+        final Object buffer;
+
+        /** Capacity of buffer */
+        final int capacity;
+
+        /** Time when buffer was returned to pool */
+        final long releaseTime;
+
+        PooledBuffer(Object buffer, int capacity) {
+            this.buffer = buffer;
+            this.capacity = capacity;
+            this.releaseTime = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Unused buffers of one kind - one queue per size class (most recently released first)
+     */
+    private static class SizeClasses {
+
+        private final ArrayDeque<?>[] queues = new ArrayDeque<?>[MAX_SIZE_CLASS + 1];
+
+        SizeClasses() {
+            for (int i = 0; i < queues.length; i++) {
+                queues[i] = new ArrayDeque<PooledBuffer>();
+            }
+        }
+
+        /**
+         * @param sizeClass Size class
+         * @return Unused buffer of this size class - or null if there is none
+         */
+        Object poll(int sizeClass) {
+            evictIdleBuffers();
+            if (sizeClass <= MAX_SIZE_CLASS) {
+                ArrayDeque<PooledBuffer> queue = get(sizeClass);
+                PooledBuffer pooled;
+                synchronized (queue) {
+                    pooled = queue.pollFirst();
+                }
+                if (pooled != null) {
+                    hits.incrementAndGet();
+                    bytesRetained.addAndGet(-pooled.capacity);
+                    return pooled.buffer;
+                }
+            }
+            misses.incrementAndGet();
+            return null;
+        }
+
+        /**
+         * @param buffer Buffer to add to pool (ignored if capacity is not the capacity of a size class)
+         * @param capacity Capacity of buffer
+         */
+        void offer(Object buffer, int capacity) {
+            int sizeClass = getSizeClass(capacity);
+            if (sizeClass > MAX_SIZE_CLASS || capacity != (1 << sizeClass)) {
+                return;
+            }
+            ArrayDeque<PooledBuffer> queue = get(sizeClass);
+            synchronized (queue) {
+                if (queue.size() >= MAX_BUFFERS_PER_CLASS) {
+                    return;
+                }
+                queue.addFirst(new PooledBuffer(buffer, capacity));
+            }
+            bytesRetained.addAndGet(capacity);
+            evictIdleBuffers();
+        }
+
+        /**
+         * Removes buffers that were released before the specified time
+         *
+         * @param releasedBefore Time stamp
+         */
+        void evict(long releasedBefore) {
+            for (int i = MIN_SIZE_CLASS; i < queues.length; i++) {
+                ArrayDeque<PooledBuffer> queue = get(i);
+                synchronized (queue) {
+                    while (!queue.isEmpty() && queue.peekLast().releaseTime < releasedBefore) {
+                        bytesRetained.addAndGet(-queue.pollLast().capacity);
+                    }
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private ArrayDeque<PooledBuffer> get(int sizeClass) {
+            return (ArrayDeque<PooledBuffer>)queues[sizeClass];
+        }
+    }
+}
@@ -0,0 +1,164 @@
+//
+// You received this file as part of Finroc
+// A framework for intelligent robot control
+//
+// Copyright (C) Finroc GbR (finroc.org)
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+//
+//----------------------------------------------------------------------
+package org.finroc.plugins.data_types.util;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+/**
+ * Decodes compressed images (JPEG, PNG, ...) to 24 bit RGB integer buffers.
+ *
+ * ImageIO readers and the destination image are reused for subsequent frames.
+ * If a reader can decode to TYPE_INT_RGB directly, it decodes straight into the
+ * destination image - so decoding frames of constant size does not allocate image buffers.
+ * Instances are not thread-safe.
+ */
+public class CompressedImageDecoder {
+
+    /** Readers for different formats (key: format name) */
+    private final HashMap<String, ImageReader> readers = new HashMap<String, ImageReader>();
+
+    /** Input stream wrapping compressed data */
+    private final InputBuffer input = new InputBuffer();
+
+    /** Destination image */
+    private BufferedImage destination;
+
+    /**
+     * Decodes image
+     *
+     * @param data Array containing compressed image
+     * @param length Length of compressed image in bytes
+     * @param format Format name (e.g. "jpeg" or "png") - determines reader
+     * @return Decoded image (TYPE_INT_RGB). Is reused by the next call to decode() if dimensions do not change.
+     */
+    public BufferedImage decode(byte[] data, int length, String format) throws IOException {
+        input.set(data, length);
+        ImageInputStream imageInput = new MemoryCacheImageInputStream(input);
+        try {
+            ImageReader reader = getReader(format.toLowerCase(), imageInput);
+            reader.setInput(imageInput, true, true);
+            int width = reader.getWidth(0);
+            int height = reader.getHeight(0);
+            if (destination == null || destination.getWidth() != width || destination.getHeight() != height) {
+                destination = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            }
+            ImageReadParam param = reader.getDefaultReadParam();
+            if (supportsIntRGB(reader)) {
+                param.setDestination(destination);
+                reader.read(0, param);
+            } else {
+                BufferedImage decoded = reader.read(0, param);
+                decoded.getRGB(0, 0, width, height, getPixels(), 0, width);
+            }
+            clearAlpha(getPixels(), width * height);
+            reader.setInput(null);
+            return destination;
+        } finally {
+            imageInput.close();
+        }
+    }
+
+    /**
+     * @return Pixel buffer of destination image (one int per pixel, no padding)
+     */
+    public int[] getPixels() {
+        return ((DataBufferInt)destination.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * Clears the unused upper byte of all pixels (readers and getRGB() may set it to 0xFF)
+     *
+     * @param pixels Pixel buffer
+     * @param count Number of pixels
+     */
+    private static void clearAlpha(int[] pixels, int count) {
+        if (count > 0 && (pixels[0] >>> 24) == 0 && (pixels[count - 1] >>> 24) == 0) {
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            pixels[i] &= 0xFFFFFF;
+        }
+    }
+
+    /**
+     * @param format Format name
+     * @param imageInput Input stream (used to determine reader if there is none for the format name)
+     * @return Reader for specified format
+     */
+    private ImageReader getReader(String format, ImageInputStream imageInput) throws IOException {
+        ImageReader reader = readers.get(format);
+        if (reader == null) {
+            Iterator<ImageReader> it = ImageIO.getImageReadersByFormatName(format);
+            if (!it.hasNext()) {
+                it = ImageIO.getImageReaders(imageInput);
+            }
+            if (!it.hasNext()) {
+                throw new IOException("No image reader found for format " + format);
+            }
+            reader = it.next();
+            readers.put(format, reader);
+        }
+        return reader;
+    }
+
+    /**
+     * @param reader Reader (with input set)
+     * @return True if reader can decode current image to TYPE_INT_RGB directly (depends on image, e.g. grayscale JPEGs cannot)
+     */
+    private boolean supportsIntRGB(ImageReader reader) throws IOException {
+        for (Iterator<ImageTypeSpecifier> it = reader.getImageTypes(0); it.hasNext();) {
+            if (it.next().getBufferedImageType() == BufferedImage.TYPE_INT_RGB) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Input stream that can be set to different arrays
+     */
+    private static class InputBuffer extends ByteArrayInputStream {
+
+        public InputBuffer() {
+            super(new byte[0]);
+        }
+
+        public void set(byte[] data, int length) {
+            buf = data;
+            pos = 0;
+            count = length;
+            mark = 0;
+        }
+    }
+}
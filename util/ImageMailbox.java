@@ -0,0 +1,247 @@
+//
+// You received this file as part of Finroc
+// A framework for intelligent robot control
+//
+// Copyright (C) Finroc GbR (finroc.org)
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+//
+//----------------------------------------------------------------------
+package org.finroc.plugins.data_types.util;
+
+import java.util.ArrayList;
+
+import org.finroc.plugins.data_types.Image;
+
+/**
+ * Latest-value mailbox for images.
+ *
+ * The receiving thread stores every frame in the mailbox (publish() - or getWriteBuffer() and commit() to
+ * deserialize frames directly into the mailbox). Consumers (e.g. viewers) only ever obtain the newest frame:
+ * frames that arrive while a consumer is still busy with a previous one are skipped for this consumer - so slow
+ * consumers show the most recent frame instead of accumulating a backlog. Frames are kept in a small set of
+ * reused Image buffers - a buffer is not overwritten while any consumer uses it.
+ * Each consumer keeps metrics on received, converted and dropped frames - and on conversion latency.
+ *
+ * Thread-safe.
+ */
+public class ImageMailbox {
+
+    /** Image buffer in mailbox */
+    private static class Slot {
+
+        /** Image */
+        final Image image = new Image();
+
+        /** Sequence number of frame in slot */
+        long sequence;
+
+        /** Time when frame was committed (System.nanoTime()) */
+        long commitTime;
+
+        /** Number of consumers currently using slot */
+        int users;
+    }
+
+    /** All slots */
+    private final ArrayList<Slot> slots = new ArrayList<Slot>();
+
+    /** Slot containing newest frame (null if no frame was committed yet) */
+    private Slot latest;
+
+    /** Slot currently being written to (null if none) */
+    private Slot writing;
+
+    /** Sequence number of newest frame (= number of frames committed) */
+    private long sequence;
+
+    /**
+     * Consumer of images in mailbox - with its own frame skipping and metrics.
+     * A consumer should only be used by a single thread.
+     */
+    public class Consumer {
+
+        /** Minimum interval between frames obtained by this consumer (in ns) */
+        private long minInterval;
+
+        /** Slot currently used by consumer (null if none) */
+        private Slot current;
+
+        /** Sequence number of the last frame obtained by consumer */
+        private long lastSequence;
+
+        /** Time when consumer last obtained a frame (System.nanoTime()) */
+        private long lastAcquireTime;
+
+        /** Metrics */
+        private volatile long framesConverted, framesDropped, totalLatency, lastLatency;
+
+        private Consumer() {
+            lastSequence = sequence;
+        }
+
+        /**
+         * Obtains newest frame - if there is a new one since the last call.
+         * Frames in between are skipped (and counted as dropped).
+         * Frame must be released via release() after it has been converted/displayed.
+         *
+         * @return Newest frame - or null if there is no new frame (or the frame rate limit is reached)
+         */
+        public Image acquire() {
+            synchronized (ImageMailbox.this) {
+                if (current != null) {
+                    throw new RuntimeException("Previous frame has not been released");
+                }
+                if (latest == null || latest.sequence == lastSequence) {
+                    return null;
+                }
+                long now = System.nanoTime();
+                if (minInterval > 0 && lastAcquireTime != 0 && now - lastAcquireTime < minInterval) {
+                    return null;
+                }
+                framesDropped += latest.sequence - lastSequence - 1;
+                lastSequence = latest.sequence;
+                lastAcquireTime = now;
+                current = latest;
+                current.users++;
+                return current.image;
+            }
+        }
+
+        /**
+         * Releases frame obtained via acquire() - and records it as converted
+         */
+        public void release() {
+            synchronized (ImageMailbox.this) {
+                if (current == null) {
+                    return;
+                }
+                lastLatency = System.nanoTime() - current.commitTime;
+                totalLatency += lastLatency;
+                framesConverted++;
+                current.users--;
+                current = null;
+            }
+        }
+
+        /**
+         * @param maxFrameRate Maximum number of frames per second this consumer obtains (0 for no limit)
+         */
+        public void setMaxFrameRate(double maxFrameRate) {
+            minInterval = maxFrameRate > 0 ? (long)(1000000000 / maxFrameRate) : 0;
+        }
+
+        /**
+         * @return Number of frames received by mailbox
+         */
+        public long getFramesReceived() {
+            return ImageMailbox.this.getFramesReceived();
+        }
+
+        /**
+         * @return Number of frames this consumer obtained and released
+         */
+        public long getFramesConverted() {
+            return framesConverted;
+        }
+
+        /**
+         * @return Number of frames this consumer skipped (because newer frames arrived before it obtained them)
+         */
+        public long getFramesDropped() {
+            return framesDropped;
+        }
+
+        /**
+         * @return Time between arrival of last converted frame and its release (in ms)
+         */
+        public double getLastConversionLatency() {
+            return lastLatency / 1000000.0;
+        }
+
+        /**
+         * @return Average time between arrival of converted frames and their release (in ms)
+         */
+        public double getAverageConversionLatency() {
+            long converted = framesConverted;
+            return converted > 0 ? totalLatency / 1000000.0 / converted : 0;
+        }
+
+        @Override
+        public String toString() {
+            return "received " + getFramesReceived() + ", converted " + framesConverted + ", dropped " + framesDropped + ", latency " + getAverageConversionLatency() + " ms";
+        }
+    }
+
+    /**
+     * @return New consumer (only frames committed after its creation are provided to it)
+     */
+    public synchronized Consumer createConsumer() {
+        return new Consumer();
+    }
+
+    /**
+     * Stores copy of image in mailbox as newest frame
+     *
+     * @param image Image to store
+     */
+    public void publish(Image image) {
+        getWriteBuffer().copyFrom(image);
+        commit();
+    }
+
+    /**
+     * Obtains image buffer that next frame can be written to (e.g. via deserialize()).
+     * After writing, commit() must be called.
+     *
+     * @return Image buffer that is not used by any consumer
+     */
+    public synchronized Image getWriteBuffer() {
+        if (writing == null) {
+            for (Slot slot : slots) {
+                if (slot != latest && slot.users == 0) {
+                    writing = slot;
+                    break;
+                }
+            }
+            if (writing == null) {
+                writing = new Slot();
+                slots.add(writing);
+            }
+        }
+        return writing.image;
+    }
+
+    /**
+     * Makes frame in write buffer the newest frame
+     */
+    public synchronized void commit() {
+        if (writing == null) {
+            throw new RuntimeException("No frame has been written");
+        }
+        sequence++;
+        writing.sequence = sequence;
+        writing.commitTime = System.nanoTime();
+        latest = writing;
+        writing = null;
+    }
+
+    /**
+     * @return Number of frames committed to mailbox
+     */
+    public synchronized long getFramesReceived() {
+        return sequence;
+    }
+}
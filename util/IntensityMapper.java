@@ -0,0 +1,337 @@
+//
+// You received this file as part of Finroc
+// A framework for intelligent robot control
+//
+// Copyright (C) Finroc GbR (finroc.org)
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+//
+//----------------------------------------------------------------------
+package org.finroc.plugins.data_types.util;
+
+import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
+
+import org.finroc.plugins.data_types.Blittable;
+
+/**
+ * Maps frames of MONO16 or little endian MONO32_FLOAT pixels to RGB colors according to an IntensityWindow.
+ *
+ * update16() / updateFloat() determine the window for a frame (scanning it - in parallel if large - only if the
+ * window depends on the frame's values) and update a lookup table with 65536 entries.
+ * Histograms for percentile windows are reused for all frames (one per parallel band).
+ * Rows are then converted in a single pass with PixelConverter.mono16ToRGB() / float32ToRGB().
+ * Not thread-safe - but the lookup table may be used concurrently once updated.
+ */
+public class IntensityMapper {
+
+    /** Number of entries in lookup table (and number of histogram bins) */
+    public static final int LUT_SIZE = 65536;
+
+    /** Minimum number of pixels that are scanned by a single task */
+    private static final int MIN_PIXELS_PER_TASK = 64 * 1024;
+
+    /** Lookup table: MONO16 value (or quantized float value) to RGB color */
+    private final int[] lookupTable = new int[LUT_SIZE];
+
+    /** Window and mapped value range that lookup table was built for */
+    private IntensityWindow window;
+    private double low = Double.NaN, high = Double.NaN;
+
+    /** Mapping of float values to lookup table indices: index = (value - floatOffset) * floatScale */
+    private float floatOffset, floatScale;
+
+    /** Histograms of bands of lines (reused for all frames - one per band) */
+    private int[][] histograms = new int[0][];
+
+    /**
+     * Determines window for frame of MONO16 pixels and updates lookup table
+     *
+     * @param data Image data (little endian)
+     * @param offset Index of first pixel in data
+     * @param stride Number of bytes per line
+     * @param width Image width
+     * @param height Image height
+     * @param window Window to apply
+     */
+    public void update16(byte[] data, int offset, int stride, int width, int height, IntensityWindow window) {
+        double newLow = window.getLow(), newHigh = window.getHigh();
+        if (window.getMode() != IntensityWindow.Mode.FIXED) {
+            ScanTask scan = scan(data, offset, stride, width, height, false, window.getMode() == IntensityWindow.Mode.PERCENTILE, 0, 1);
+            if (scan.count == 0) {
+                newLow = 0;
+                newHigh = LUT_SIZE - 1;
+            } else if (scan.histogram != null) {
+                newLow = getPercentileBin(scan.histogram, scan.count, window.getLow());
+                newHigh = getPercentileBin(scan.histogram, scan.count, window.getHigh());
+            } else {
+                newLow = scan.min;
+                newHigh = scan.max;
+            }
+        }
+        if (window != this.window || newLow != low || newHigh != high) {
+            double range = Math.max(1, newHigh - newLow);
+            for (int i = 0; i < LUT_SIZE; i++) {
+                lookupTable[i] = window.getColormap().getColor((i - newLow) / range);
+            }
+            this.window = window;
+            low = newLow;
+            high = newHigh;
+        }
+    }
+
+    /**
+     * Determines window for frame of MONO32_FLOAT pixels and updates lookup table
+     * (NaN and infinite values are ignored)
+     *
+     * @param data Image data (little endian)
+     * @param offset Index of first pixel in data
+     * @param stride Number of bytes per line
+     * @param width Image width
+     * @param height Image height
+     * @param window Window to apply
+     */
+    public void updateFloat(byte[] data, int offset, int stride, int width, int height, IntensityWindow window) {
+        double newLow = window.getLow(), newHigh = window.getHigh();
+        if (window.getMode() != IntensityWindow.Mode.FIXED) {
+            ScanTask scan = scan(data, offset, stride, width, height, true, false, 0, 1);
+            if (scan.count == 0) {
+                newLow = 0;
+                newHigh = 1;
+            } else if (window.getMode() == IntensityWindow.Mode.PERCENTILE && scan.max > scan.min) {
+                float scale = (float)((LUT_SIZE - 1) / (scan.max - scan.min));
+                ScanTask histogramScan = scan(data, offset, stride, width, height, true, true, (float)scan.min, scale);
+                newLow = scan.min + getPercentileBin(histogramScan.histogram, histogramScan.count, window.getLow()) / scale;
+                newHigh = scan.min + getPercentileBin(histogramScan.histogram, histogramScan.count, window.getHigh()) / scale;
+            } else {
+                newLow = scan.min;
+                newHigh = scan.max;
+            }
+        }
+        if (this.window == null || window.getColormap() != this.window.getColormap()) {
+            for (int i = 0; i < LUT_SIZE; i++) {
+                lookupTable[i] = window.getColormap().getColor(i / (double)(LUT_SIZE - 1));
+            }
+        }
+        this.window = window;
+        low = newLow;
+        high = newHigh;
+        floatOffset = (float)newLow;
+        floatScale = newHigh > newLow ? (float)((LUT_SIZE - 1) / (newHigh - newLow)) : 0;
+    }
+
+    /**
+     * @return Lookup table (MONO16 value or quantized float value to RGB color)
+     */
+    public int[] getLookupTable() {
+        return lookupTable;
+    }
+
+    /**
+     * @return Offset for computing lookup table index of float value: index = (value - offset) * scale
+     */
+    public float getFloatOffset() {
+        return floatOffset;
+    }
+
+    /**
+     * @return Scale for computing lookup table index of float value: index = (value - offset) * scale
+     */
+    public float getFloatScale() {
+        return floatScale;
+    }
+
+    /**
+     * @return Value that is mapped to colormap's first color in current frame
+     */
+    public double getLow() {
+        return low;
+    }
+
+    /**
+     * @return Value that is mapped to colormap's last color in current frame
+     */
+    public double getHigh() {
+        return high;
+    }
+
+    /**
+     * Scans frame - in parallel bands if frame is large (one band per worker thread)
+     *
+     * @param data Image data (little endian)
+     * @param offset Index of first pixel in data
+     * @param stride Number of bytes per line
+     * @param width Image width
+     * @param height Image height
+     * @param floats Are pixels MONO32_FLOAT values (otherwise MONO16)?
+     * @param computeHistogram Compute histogram?
+     * @param histogramOffset Histogram bin of value: (value - histogramOffset) * histogramScale
+     * @param histogramScale Histogram bin of value: (value - histogramOffset) * histogramScale
+     * @return Task with results for whole frame
+     */
+    private ScanTask scan(byte[] data, int offset, int stride, int width, int height, boolean floats, boolean computeHistogram, float histogramOffset, float histogramScale) {
+        int bands = 1;
+        if (Blittable.isParallelBlitting() && width * height >= Blittable.PARALLEL_BLIT_THRESHOLD) {
+            bands = (int)Math.max(1, Math.min(Math.min(height, Blittable.getBlitPool().getParallelism()), (long)width * height / MIN_PIXELS_PER_TASK));
+        }
+        if (computeHistogram && histograms.length < bands) {
+            int[][] newHistograms = new int[bands][];
+            for (int i = 0; i < bands; i++) {
+                newHistograms[i] = i < histograms.length ? histograms[i] : new int[LUT_SIZE];
+            }
+            histograms = newHistograms;
+        }
+        final ScanTask[] tasks = new ScanTask[bands];
+        for (int i = 0; i < bands; i++) {
+            int firstLine = (int)((long)height * i / bands);
+            tasks[i] = new ScanTask(data, offset, stride, width, floats, firstLine, (int)((long)height * (i + 1) / bands) - firstLine, computeHistogram ? histograms[i] : null, histogramOffset, histogramScale);
+        }
+        if (bands == 1) {
+            tasks[0].scanLines();
+            return tasks[0];
+        }
+        Blittable.getBlitPool().invoke(new RecursiveAction() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+
+        // merge results of bands
+        ScanTask result = tasks[0];
+        for (int i = 1; i < bands; i++) {
+            result.min = Math.min(result.min, tasks[i].min);
+            result.max = Math.max(result.max, tasks[i].max);
+            result.count += tasks[i].count;
+            if (computeHistogram) {
+                int[] histogram = tasks[i].histogram;
+                for (int j = 0; j < LUT_SIZE; j++) {
+                    result.histogram[j] += histogram[j];
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param histogram Histogram
+     * @param count Number of values in histogram
+     * @param percentile Percentile (0 - 100)
+     * @return Bin containing percentile
+     */
+    private static int getPercentileBin(int[] histogram, long count, double percentile) {
+        long threshold = Math.min(count - 1, (long)(count * percentile / 100));
+        long sum = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            sum += histogram[i];
+            if (sum > threshold) {
+                return i;
+            }
+        }
+        return histogram.length - 1;
+    }
+
+    /**
+     * Task that determines minimum, maximum and (optionally) histogram of a band of lines
+     */
+    private static class ScanTask extends RecursiveAction {
+
+        /** UID */
+        private static final long serialVersionUID = -2185374615738904537L;
+
+        final byte[] data;
+        final int offset, stride, width, firstLine, lines;
+        final boolean floats;
+
+        /** Histogram bin of value: (value - histogramOffset) * histogramScale */
+        final float histogramOffset, histogramScale;
+
+        /** Results (histogram is null if no histogram is computed - otherwise it is cleared before scanning) */
+        double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+        long count;
+        final int[] histogram;
+
+        ScanTask(byte[] data, int offset, int stride, int width, boolean floats, int firstLine, int lines, int[] histogram, float histogramOffset, float histogramScale) {
+            this.data = data;
+            this.offset = offset;
+            this.stride = stride;
+            this.width = width;
+            this.floats = floats;
+            this.firstLine = firstLine;
+            this.lines = lines;
+            this.histogram = histogram;
+            this.histogramOffset = histogramOffset;
+            this.histogramScale = histogramScale;
+        }
+
+        @Override
+        protected void compute() {
+            scanLines();
+        }
+
+        /**
+         * Scans all lines of this task in the current thread
+         */
+        void scanLines() {
+            boolean computeHistogram = histogram != null;
+            if (computeHistogram) {
+                Arrays.fill(histogram, 0);
+            }
+            int lineOffset = offset + firstLine * stride;
+            if (floats) {
+                float minValue = Float.POSITIVE_INFINITY, maxValue = Float.NEGATIVE_INFINITY;
+                int valid = 0;
+                for (int y = 0; y < lines; y++, lineOffset += stride) {
+                    for (int i = lineOffset, end = lineOffset + width * 4; i < end; i += 4) {
+                        float value = Float.intBitsToFloat((data[i] & 0xFF) | ((data[i + 1] & 0xFF) << 8) | ((data[i + 2] & 0xFF) << 16) | (data[i + 3] << 24));
+                        if (value - value != 0) {
+                            continue; // NaN or infinite
+                        }
+                        minValue = Math.min(minValue, value);
+                        maxValue = Math.max(maxValue, value);
+                        valid++;
+                        if (computeHistogram) {
+                            histogram[Math.max(0, Math.min(LUT_SIZE - 1, (int)((value - histogramOffset) * histogramScale)))]++;
+                        }
+                    }
+                }
+                min = minValue;
+                max = maxValue;
+                count = valid;
+            } else {
+                int minValue = LUT_SIZE, maxValue = -1;
+                for (int y = 0; y < lines; y++, lineOffset += stride) {
+                    for (int i = lineOffset, end = lineOffset + width * 2; i < end; i += 2) {
+                        int value = (data[i] & 0xFF) | ((data[i + 1] & 0xFF) << 8);
+                        minValue = Math.min(minValue, value);
+                        maxValue = Math.max(maxValue, value);
+                        if (computeHistogram) {
+                            histogram[value]++;
+                        }
+                    }
+                }
+                min = minValue;
+                max = maxValue;
+                count = (long)width * lines;
+            }
+            if (count == 0) {
+                min = Double.POSITIVE_INFINITY;
+                max = Double.NEGATIVE_INFINITY;
+            }
+        }
+    }
+}
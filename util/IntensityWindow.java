@@ -0,0 +1,166 @@
+//
+// You received this file as part of Finroc
+// A framework for intelligent robot control
+//
+// Copyright (C) Finroc GbR (finroc.org)
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+//
+//----------------------------------------------------------------------
+package org.finroc.plugins.data_types.util;
+
+/**
+ * Defines how single channel images with a large value range (MONO16 and MONO32_FLOAT - e.g. depth or thermal images)
+ * are mapped to displayable colors: the window of values that is mapped to the colormap's range - and the colormap.
+ * Values below the window get the colormap's first color, values above it the last color.
+ *
+ * Immutable.
+ */
+public class IntensityWindow {
+
+    /** How the window is determined */
+    public enum Mode {
+
+        /** Window spans minimum to maximum value of each frame */
+        MIN_MAX,
+
+        /** Fixed window (in pixel values) */
+        FIXED,
+
+        /** Window spans the specified percentiles of each frame's values (ignores outliers) */
+        PERCENTILE
+    }
+
+    /** Colormaps */
+    public enum Colormap {
+
+        /** Black to white */
+        GRAY(0x000000, 0xFFFFFF),
+
+        /** Black - red - yellow - white */
+        HOT(0x000000, 0xFF0000, 0xFFFF00, 0xFFFFFF),
+
+        /** Dark blue - blue - cyan - yellow - red - dark red */
+        JET(0x000080, 0x0000FF, 0x00FFFF, 0xFFFF00, 0xFF0000, 0x800000);
+
+        /** Colors with 256 entries (interpolated between the colormap's control points) */
+        private final int[] palette = new int[256];
+
+        private Colormap(int... controlPoints) {
+            int segments = controlPoints.length - 1;
+            for (int i = 0; i < 256; i++) {
+                float position = i * segments / 255f;
+                int segment = Math.min(segments - 1, (int)position);
+                float t = position - segment;
+                int from = controlPoints[segment], to = controlPoints[segment + 1];
+                int result = 0;
+                for (int shift = 0; shift <= 16; shift += 8) {
+                    int a = (from >> shift) & 0xFF, b = (to >> shift) & 0xFF;
+                    result |= Math.round(a + (b - a) * t) << shift;
+                }
+                palette[i] = result;
+            }
+        }
+
+        /**
+         * @param value Value between 0 and 1 (values outside are clamped)
+         * @return RGB color for value
+         */
+        public int getColor(double value) {
+            return palette[(int)(Math.max(0, Math.min(1, value)) * 255 + 0.5)];
+        }
+    }
+
+    /** Default: min/max window with grayscale colormap */
+    public static final IntensityWindow DEFAULT = new IntensityWindow(Mode.MIN_MAX, 0, 0, Colormap.GRAY);
+
+    /** How the window is determined */
+    private final Mode mode;
+
+    /** Window bounds (FIXED) or percentiles (PERCENTILE) */
+    private final double low, high;
+
+    /** Colormap */
+    private final Colormap colormap;
+
+    private IntensityWindow(Mode mode, double low, double high, Colormap colormap) {
+        this.mode = mode;
+        this.low = low;
+        this.high = high;
+        this.colormap = colormap;
+    }
+
+    /**
+     * @param colormap Colormap
+     * @return Window spanning minimum to maximum value of each frame
+     */
+    public static IntensityWindow minMax(Colormap colormap) {
+        return new IntensityWindow(Mode.MIN_MAX, 0, 0, colormap);
+    }
+
+    /**
+     * @param min Value that is mapped to colormap's first color
+     * @param max Value that is mapped to colormap's last color
+     * @param colormap Colormap
+     * @return Fixed window
+     */
+    public static IntensityWindow fixed(double min, double max, Colormap colormap) {
+        if (!(max > min)) {
+            throw new RuntimeException("Invalid window: " + min + " - " + max);
+        }
+        return new IntensityWindow(Mode.FIXED, min, max, colormap);
+    }
+
+    /**
+     * @param lowPercentile Percentile (0 - 100) of each frame's values that is mapped to colormap's first color
+     * @param highPercentile Percentile (0 - 100) of each frame's values that is mapped to colormap's last color
+     * @param colormap Colormap
+     * @return Percentile window
+     */
+    public static IntensityWindow percentile(double lowPercentile, double highPercentile, Colormap colormap) {
+        if (lowPercentile < 0 || highPercentile > 100 || !(highPercentile > lowPercentile)) {
+            throw new RuntimeException("Invalid percentiles: " + lowPercentile + " - " + highPercentile);
+        }
+        return new IntensityWindow(Mode.PERCENTILE, lowPercentile, highPercentile, colormap);
+    }
+
+    /**
+     * @return How the window is determined
+     */
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * @return Lower window bound (FIXED) or lower percentile (PERCENTILE)
+     */
+    public double getLow() {
+        return low;
+    }
+
+    /**
+     * @return Upper window bound (FIXED) or upper percentile (PERCENTILE)
+     */
+    public double getHigh() {
+        return high;
+    }
+
+    /**
+     * @return Colormap
+     */
+    public Colormap getColormap() {
+        return colormap;
+    }
+}
@@ -0,0 +1,243 @@
+//
+// You received this file as part of Finroc
+// A framework for intelligent robot control
+//
+// Copyright (C) Finroc GbR (finroc.org)
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+//
+//----------------------------------------------------------------------
+package org.finroc.plugins.data_types.util;
+
+import java.util.Arrays;
+
+/**
+ * Fast lossless compression of byte arrays in LZ4 block format.
+ *
+ * Greedy single-pass compressor with a hash table of recent 4 byte sequences.
+ * Typically used for raw image data - where speed matters more than compression ratio.
+ * Instances hold the hash table and are not thread-safe.
+ */
+public class LZ4Codec {
+
+    /** Minimum match length */
+    private static final int MIN_MATCH = 4;
+
+    /** Last bytes are always stored as literals */
+    private static final int LAST_LITERALS = 5;
+
+    /** Matches must start at least this many bytes before the end of input */
+    private static final int MF_LIMIT = 12;
+
+    /** Maximum distance of a match */
+    private static final int MAX_DISTANCE = 0xFFFF;
+
+    /** Size of hash table (log2) */
+    private static final int HASH_LOG = 16;
+
+    /** Hash table: position + 1 of last occurrence of hashed 4 byte sequence (0 if none) */
+    private final int[] hashTable = new int[1 << HASH_LOG];
+
+    /**
+     * @param length Number of bytes to compress
+     * @return Size of buffer that is sufficient for compressed data in any case
+     */
+    public static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    /**
+     * Compresses data
+     *
+     * @param src Source array
+     * @param srcOffset Offset of data in source array
+     * @param length Number of bytes to compress
+     * @param dest Destination array (at least maxCompressedLength(length) bytes after destOffset)
+     * @param destOffset Offset in destination array
+     * @return Size of compressed data
+     */
+    public int compress(byte[] src, int srcOffset, int length, byte[] dest, int destOffset) {
+        Arrays.fill(hashTable, 0);
+        final int end = srcOffset + length;
+        final int matchLimit = end - MF_LIMIT;
+        final int literalsStart = end - LAST_LITERALS;
+        int anchor = srcOffset;
+        int ip = srcOffset;
+        int op = destOffset;
+
+        if (length > MF_LIMIT) {
+            while (ip < matchLimit) {
+                int sequence = readInt(src, ip);
+                int hash = (sequence * -1640531535) >>> (32 - HASH_LOG);
+                int ref = hashTable[hash] - 1;
+                hashTable[hash] = ip + 1;
+                if (ref < srcOffset || ip - ref > MAX_DISTANCE || readInt(src, ref) != sequence) {
+                    ip++;
+                    continue;
+                }
+
+                // extend match backwards and forwards
+                while (ip > anchor && ref > srcOffset && src[ip - 1] == src[ref - 1]) {
+                    ip--;
+                    ref--;
+                }
+                int matchLength = MIN_MATCH;
+                while (ip + matchLength < literalsStart && src[ip + matchLength] == src[ref + matchLength]) {
+                    matchLength++;
+                }
+
+                op = writeSequence(src, anchor, ip - anchor, dest, op, ip - ref, matchLength);
+                ip += matchLength;
+                anchor = ip;
+            }
+        }
+
+        // last literals
+        return writeSequence(src, anchor, end - anchor, dest, op, 0, 0) - destOffset;
+    }
+
+    /**
+     * Decompresses data
+     *
+     * @param src Source array
+     * @param srcOffset Offset of compressed data in source array
+     * @param length Size of compressed data
+     * @param dest Destination array
+     * @param destOffset Offset in destination array
+     * @param maxLength Maximum number of bytes to write to destination array
+     * @return Size of decompressed data
+     */
+    public static int decompress(byte[] src, int srcOffset, int length, byte[] dest, int destOffset, int maxLength) {
+        final int srcEnd = srcOffset + length;
+        final int destEnd = destOffset + maxLength;
+        int ip = srcOffset;
+        int op = destOffset;
+        while (ip < srcEnd) {
+            int token = src[ip++] & 0xFF;
+
+            // literals
+            int literalLength = token >>> 4;
+            if (literalLength == 15) {
+                int b;
+                do {
+                    if (ip >= srcEnd) {
+                        throw new RuntimeException("Corrupt LZ4 data");
+                    }
+                    b = src[ip++] & 0xFF;
+                    literalLength += b;
+                } while (b == 255);
+            }
+            if (ip + literalLength > srcEnd || op + literalLength > destEnd) {
+                throw new RuntimeException("Corrupt LZ4 data");
+            }
+            System.arraycopy(src, ip, dest, op, literalLength);
+            ip += literalLength;
+            op += literalLength;
+            if (ip >= srcEnd) {
+                break; // last sequence
+            }
+
+            // match
+            if (ip + 2 > srcEnd) {
+                throw new RuntimeException("Corrupt LZ4 data");
+            }
+            int distance = (src[ip] & 0xFF) | ((src[ip + 1] & 0xFF) << 8);
+            ip += 2;
+            int matchLength = token & 0xF;
+            if (matchLength == 15) {
+                int b;
+                do {
+                    if (ip >= srcEnd) {
+                        throw new RuntimeException("Corrupt LZ4 data");
+                    }
+                    b = src[ip++] & 0xFF;
+                    matchLength += b;
+                } while (b == 255);
+            }
+            matchLength += MIN_MATCH;
+            int ref = op - distance;
+            if (distance == 0 || ref < destOffset || op + matchLength > destEnd) {
+                throw new RuntimeException("Corrupt LZ4 data");
+            }
+            if (distance >= matchLength) {
+                System.arraycopy(dest, ref, dest, op, matchLength);
+                op += matchLength;
+            } else {
+                for (int i = 0; i < matchLength; i++) { // overlapping copy
+                    dest[op++] = dest[ref++];
+                }
+            }
+        }
+        return op - destOffset;
+    }
+
+    /**
+     * Writes sequence (literals followed by match)
+     *
+     * @param src Source array
+     * @param literalStart Index of first literal in source array
+     * @param literalLength Number of literals
+     * @param dest Destination array
+     * @param op Current position in destination array
+     * @param distance Distance of match (0 if there is no match - last sequence)
+     * @param matchLength Length of match
+     * @return New position in destination array
+     */
+    private static int writeSequence(byte[] src, int literalStart, int literalLength, byte[] dest, int op, int distance, int matchLength) {
+        int tokenPos = op++;
+        int token;
+        if (literalLength >= 15) {
+            token = 15 << 4;
+            op = writeLength(dest, op, literalLength - 15);
+        } else {
+            token = literalLength << 4;
+        }
+        System.arraycopy(src, literalStart, dest, op, literalLength);
+        op += literalLength;
+
+        if (distance > 0) {
+            dest[op++] = (byte)distance;
+            dest[op++] = (byte)(distance >>> 8);
+            int length = matchLength - MIN_MATCH;
+            if (length >= 15) {
+                token |= 15;
+                op = writeLength(dest, op, length - 15);
+            } else {
+                token |= length;
+            }
+        }
+        dest[tokenPos] = (byte)token;
+        return op;
+    }
+
+    /**
+     * Writes length extension bytes
+     */
+    private static int writeLength(byte[] dest, int op, int length) {
+        while (length >= 255) {
+            dest[op++] = (byte)255;
+            length -= 255;
+        }
+        dest[op++] = (byte)length;
+        return op;
+    }
+
+    /**
+     * @return Little endian int at specified position
+     */
+    private static int readInt(byte[] b, int index) {
+        return (b[index] & 0xFF) | ((b[index + 1] & 0xFF) << 8) | ((b[index + 2] & 0xFF) << 16) | ((b[index + 3] & 0xFF) << 24);
+    }
+}
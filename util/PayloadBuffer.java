@@ -0,0 +1,193 @@
+//
+// You received this file as part of Finroc
+// A framework for intelligent robot control
+//
+// Copyright (C) Finroc GbR (finroc.org)
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+//
+//----------------------------------------------------------------------
+package org.finroc.plugins.data_types.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.rrlib.serialization.BinaryInputStream;
+import org.rrlib.serialization.FixedBuffer;
+
+/**
+ * Buffer for large payloads of port data types (e.g. image data or distance data).
+ *
+ * Storage is obtained from the BufferPool (in power-of-two size classes) - so changing payload sizes
+ * do not cause reallocations and buffers are shared with other port data buffers.
+ * By default, data is stored in heap arrays.
+ * If off-heap storage is enabled, large payloads are stored in direct byte buffers instead -
+ * so they are read from streams into reused native memory.
+ * Access is the same in both cases: via the FixedBuffer returned by getBuffer().
+ *
+ * Storage is only returned to the pool if it was never handed out via getSharedBuffer() -
+ * buffers that may still be referenced elsewhere are left to the garbage collector.
+ */
+public class PayloadBuffer {
+
+    /** Payloads of at least this size are stored off-heap (if enabled) */
+    public static final int OFF_HEAP_THRESHOLD = 64 * 1024;
+
+    /** Store large payloads off-heap? */
+    private static volatile boolean offHeapStorage = false;
+
+    /** Buffer containing data */
+    private FixedBuffer buffer = new FixedBuffer(ByteBuffer.allocate(0).order(ByteOrder.LITTLE_ENDIAN));
+
+    /** Is buffer a direct buffer? */
+    private boolean direct;
+
+    /** Size of data in bytes */
+    private int size;
+
+    /** Was current buffer handed out via getSharedBuffer()? (if so, it must not be returned to pool - may be set by any thread) */
+    private volatile boolean shared;
+
+    /**
+     * @param enabled Store large payloads in pooled direct byte buffers (instead of the Java heap)?
+     */
+    public static void setOffHeapStorage(boolean enabled) {
+        offHeapStorage = enabled;
+    }
+
+    /**
+     * @return Are large payloads stored in pooled direct byte buffers?
+     */
+    public static boolean isOffHeapStorage() {
+        return offHeapStorage;
+    }
+
+    /**
+     * @return Buffer containing data (starting at index 0)
+     */
+    public FixedBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Returns buffer that callers may keep references to (e.g. to wrap it in a BufferedImage).
+     * The buffer is not recycled when storage is replaced - so such references never see data of other payloads.
+     *
+     * @return Byte buffer containing data (starting at index 0)
+     */
+    public ByteBuffer getSharedBuffer() {
+        shared = true;
+        return buffer.getBuffer();
+    }
+
+    /**
+     * @return Size of data in bytes
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return True if data is currently stored off-heap
+     */
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * Sets size to zero
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Sets size of data - and selects storage according to current mode
+     * (existing content is preserved up to the new size)
+     *
+     * @param size New size in bytes
+     */
+    public void setSize(int size) {
+        setSize(size, true);
+    }
+
+    /**
+     * Reads data from stream
+     *
+     * @param stream Stream to read from
+     * @param size Number of bytes to read
+     */
+    public void deserialize(BinaryInputStream stream, int size) {
+        setSize(size, false);
+        stream.readFully(buffer, 0, size);
+    }
+
+    /**
+     * Copies data from other buffer
+     *
+     * @param source Buffer to copy data from
+     */
+    public void copyFrom(PayloadBuffer source) {
+        int size = source.getSize();
+        setSize(size, false);
+        copy(source.buffer.getBuffer(), buffer.getBuffer(), size);
+    }
+
+    /**
+     * Sets size of data - and selects storage according to current mode
+     *
+     * @param size New size in bytes
+     * @param keepContent Preserve existing content (up to the new size)?
+     */
+    private void setSize(int size, boolean keepContent) {
+        boolean useDirect = offHeapStorage && size >= OFF_HEAP_THRESHOLD;
+        int capacity = buffer.getBuffer().capacity();
+        if (useDirect != direct || capacity < size || capacity >= 4 * BufferPool.getSizeClassCapacity(size)) {
+            ByteBuffer newBuffer = useDirect ? BufferPool.acquireDirect(size) : ByteBuffer.wrap(BufferPool.acquireArray(size)).order(ByteOrder.LITTLE_ENDIAN);
+            if (keepContent) {
+                copy(buffer.getBuffer(), newBuffer, Math.min(this.size, size));
+            }
+            if (shared) {
+                shared = false;
+            } else if (direct) {
+                BufferPool.releaseDirect(buffer.getBuffer());
+            } else {
+                BufferPool.releaseArray(buffer.getBuffer().array());
+            }
+            buffer = new FixedBuffer(newBuffer);
+            direct = useDirect;
+        }
+        this.size = size;
+    }
+
+    /**
+     * Copies bytes from start of one buffer to start of another
+     *
+     * @param source Source buffer
+     * @param dest Destination buffer
+     * @param size Number of bytes to copy
+     */
+    private static void copy(ByteBuffer source, ByteBuffer dest, int size) {
+        if (size <= 0) {
+            return;
+        }
+        ByteBuffer sourceView = source.duplicate();
+        sourceView.clear();
+        sourceView.limit(size);
+        ByteBuffer destView = dest.duplicate();
+        destView.clear();
+        destView.put(sourceView);
+    }
+}
@@ -0,0 +1,288 @@
+//
+// You received this file as part of Finroc
+// A framework for intelligent robot control
+//
+// Copyright (C) Finroc GbR (finroc.org)
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+//
+//----------------------------------------------------------------------
+package org.finroc.plugins.data_types.util;
+
+/**
+ * Bulk conversion of pixel rows to 24 bit RGB integers (0x??RRGGBB).
+ *
+ * All functions operate on plain arrays with absolute indices, so they are
+ * thread-safe and the inner loops are simple enough for the JIT to unroll.
+ */
+public class PixelConverter {
+
+    /**
+     * Converts row of RGB24 pixels
+     *
+     * @param src Source array
+     * @param srcIndex Index of first pixel's first byte in source array
+     * @param dest Destination buffer
+     * @param destIndex Index of first pixel in destination buffer
+     * @param count Number of pixels to convert
+     */
+    public static void rgb24ToRGB(byte[] src, int srcIndex, int[] dest, int destIndex, int count) {
+        for (int end = destIndex + count; destIndex < end; destIndex++, srcIndex += 3) {
+            dest[destIndex] = ((src[srcIndex] & 0xFF) << 16) | ((src[srcIndex + 1] & 0xFF) << 8) | (src[srcIndex + 2] & 0xFF);
+        }
+    }
+
+    /**
+     * Converts row of BGR24 pixels (parameters as in rgb24ToRGB)
+     */
+    public static void bgr24ToRGB(byte[] src, int srcIndex, int[] dest, int destIndex, int count) {
+        for (int end = destIndex + count; destIndex < end; destIndex++, srcIndex += 3) {
+            dest[destIndex] = ((src[srcIndex + 2] & 0xFF) << 16) | ((src[srcIndex + 1] & 0xFF) << 8) | (src[srcIndex] & 0xFF);
+        }
+    }
+
+    /**
+     * Converts row of RGB32 pixels (parameters as in rgb24ToRGB)
+     */
+    public static void rgb32ToRGB(byte[] src, int srcIndex, int[] dest, int destIndex, int count) {
+        for (int end = destIndex + count; destIndex < end; destIndex++, srcIndex += 4) {
+            dest[destIndex] = ((src[srcIndex] & 0xFF) << 16) | ((src[srcIndex + 1] & 0xFF) << 8) | (src[srcIndex + 2] & 0xFF);
+        }
+    }
+
+    /**
+     * Converts row of BGR32 pixels (parameters as in rgb24ToRGB)
+     */
+    public static void bgr32ToRGB(byte[] src, int srcIndex, int[] dest, int destIndex, int count) {
+        for (int end = destIndex + count; destIndex < end; destIndex++, srcIndex += 4) {
+            dest[destIndex] = ((src[srcIndex + 2] & 0xFF) << 16) | ((src[srcIndex + 1] & 0xFF) << 8) | (src[srcIndex] & 0xFF);
+        }
+    }
+
+    /**
+     * Converts row of MONO8 pixels (parameters as in rgb24ToRGB)
+     */
+    public static void mono8ToRGB(byte[] src, int srcIndex, int[] dest, int destIndex, int count) {
+        for (int end = destIndex + count; destIndex < end; destIndex++, srcIndex++) {
+            dest[destIndex] = (src[srcIndex] & 0xFF) * 0x010101;
+        }
+    }
+
+    /**
+     * Converts row of little endian MONO16 pixels - using the high byte only
+     * (parameters as in rgb24ToRGB)
+     */
+    public static void mono16ToRGB(byte[] src, int srcIndex, int[] dest, int destIndex, int count) {
+        for (int end = destIndex + count; destIndex < end; destIndex++, srcIndex += 2) {
+            dest[destIndex] = (src[srcIndex + 1] & 0xFF) * 0x010101;
+        }
+    }
+
+    /**
+     * Converts row of little endian MONO16 pixels using lookup table
+     * (other parameters as in rgb24ToRGB)
+     *
+     * @param lookupTable Color for every 16 bit value (see IntensityMapper)
+     */
+    public static void mono16ToRGB(byte[] src, int srcIndex, int[] lookupTable, int[] dest, int destIndex, int count) {
+        for (int end = destIndex + count; destIndex < end; destIndex++, srcIndex += 2) {
+            dest[destIndex] = lookupTable[(src[srcIndex] & 0xFF) | ((src[srcIndex + 1] & 0xFF) << 8)];
+        }
+    }
+
+    /**
+     * Converts row of little endian MONO32_FLOAT pixels using lookup table - NaN values become black
+     * (other parameters as in rgb24ToRGB)
+     *
+     * @param offset Offset for computing lookup table index: index = (value - offset) * scale
+     * @param scale Scale for computing lookup table index
+     * @param lookupTable Colors (65536 entries - see IntensityMapper)
+     */
+    public static void float32ToRGB(byte[] src, int srcIndex, float offset, float scale, int[] lookupTable, int[] dest, int destIndex, int count) {
+        int maxIndex = lookupTable.length - 1;
+        for (int end = destIndex + count; destIndex < end; destIndex++, srcIndex += 4) {
+            float value = Float.intBitsToFloat((src[srcIndex] & 0xFF) | ((src[srcIndex + 1] & 0xFF) << 8) | ((src[srcIndex + 2] & 0xFF) << 16) | (src[srcIndex + 3] << 24));
+            float index = (value - offset) * scale;
+            dest[destIndex] = index != index ? 0 : lookupTable[index <= 0 ? 0 : (index >= maxIndex ? maxIndex : (int)index)];
+        }
+    }
+
+    /**
+     * Converts row of little endian RGB565 pixels (parameters as in rgb24ToRGB)
+     */
+    public static void rgb565ToRGB(byte[] src, int srcIndex, int[] dest, int destIndex, int count) {
+        for (int end = destIndex + count; destIndex < end; destIndex++, srcIndex += 2) {
+            int value = (src[srcIndex] & 0xFF) | ((src[srcIndex + 1] & 0xFF) << 8);
+            dest[destIndex] = ((value & 0xF800) << 8) | ((value & 0x07E0) << 5) | ((value & 0x001F) << 3);
+        }
+    }
+
+    /**
+     * Converts selected pixels of a row of packed pixels with 8 bits per channel (e.g. for nearest-neighbour scaling)
+     *
+     * @param src Source array
+     * @param lineIndex Index of first byte of row
+     * @param bytesPerPixel Number of bytes per pixel
+     * @param rOffset Offset of red value in pixel
+     * @param gOffset Offset of green value in pixel
+     * @param bOffset Offset of blue value in pixel
+     * @param srcXs X coordinates of pixels to convert
+     * @param dest Destination buffer
+     * @param destIndex Index of first pixel in destination buffer
+     * @param count Number of pixels to convert
+     */
+    public static void sampledToRGB(byte[] src, int lineIndex, int bytesPerPixel, int rOffset, int gOffset, int bOffset, int[] srcXs, int[] dest, int destIndex, int count) {
+        for (int i = 0; i < count; i++) {
+            int pixel = lineIndex + srcXs[i] * bytesPerPixel;
+            dest[destIndex + i] = ((src[pixel + rOffset] & 0xFF) << 16) | ((src[pixel + gOffset] & 0xFF) << 8) | (src[pixel + bOffset] & 0xFF);
+        }
+    }
+
+    /**
+     * Converts row of HSV pixels (parameters as in rgb24ToRGB)
+     * Hue is expected in range 0..179 (2 degree steps - as used by OpenCV for 8 bit images)
+     */
+    public static void hsvToRGB(byte[] src, int srcIndex, int[] dest, int destIndex, int count) {
+        for (int end = destIndex + count; destIndex < end; destIndex++, srcIndex += 3) {
+            int h = (src[srcIndex] & 0xFF) % 180;
+            int s = src[srcIndex + 1] & 0xFF;
+            int v = src[srcIndex + 2] & 0xFF;
+            int sector = h / 30;
+            int f = ((h - sector * 30) * 255) / 30;
+            int p = (v * (255 - s)) / 255;
+            int q = (v * (255 - (s * f) / 255)) / 255;
+            int t = (v * (255 - (s * (255 - f)) / 255)) / 255;
+            int rgb;
+            switch (sector) {
+            case 0:
+                rgb = (v << 16) | (t << 8) | p;
+                break;
+            case 1:
+                rgb = (q << 16) | (v << 8) | p;
+                break;
+            case 2:
+                rgb = (p << 16) | (v << 8) | t;
+                break;
+            case 3:
+                rgb = (p << 16) | (q << 8) | v;
+                break;
+            case 4:
+                rgb = (t << 16) | (p << 8) | v;
+                break;
+            default:
+                rgb = (v << 16) | (p << 8) | q;
+                break;
+            }
+            dest[destIndex] = rgb;
+        }
+    }
+
+    /**
+     * Converts row of HLS pixels (parameters as in rgb24ToRGB)
+     * Hue is expected in range 0..179 (2 degree steps - as used by OpenCV for 8 bit images)
+     */
+    public static void hlsToRGB(byte[] src, int srcIndex, int[] dest, int destIndex, int count) {
+        for (int end = destIndex + count; destIndex < end; destIndex++, srcIndex += 3) {
+            int h = (src[srcIndex] & 0xFF) % 180;
+            int l = src[srcIndex + 1] & 0xFF;
+            int s = src[srcIndex + 2] & 0xFF;
+            if (s == 0) {
+                dest[destIndex] = l * 0x010101;
+                continue;
+            }
+            int q = l < 128 ? (l * (255 + s)) / 255 : l + s - (l * s) / 255;
+            int p = 2 * l - q;
+            dest[destIndex] = (hueToChannel(p, q, h + 60) << 16) | (hueToChannel(p, q, h) << 8) | hueToChannel(p, q, h - 60);
+        }
+    }
+
+    /**
+     * Helper for hlsToRGB
+     *
+     * @param p Lower bound of channel value
+     * @param q Upper bound of channel value
+     * @param h Hue (in 2 degree steps - may exceed 0..179 by up to 60)
+     * @return Channel value
+     */
+    private static int hueToChannel(int p, int q, int h) {
+        if (h < 0) {
+            h += 180;
+        } else if (h >= 180) {
+            h -= 180;
+        }
+        if (h < 30) {
+            return p + ((q - p) * h) / 30;
+        } else if (h < 90) {
+            return q;
+        } else if (h < 120) {
+            return p + ((q - p) * (120 - h)) / 30;
+        }
+        return p;
+    }
+
+    /**
+     * Converts row of packed YUV411 pixels (U Y1 Y2 V Y3 Y4)
+     *
+     * @param src Source array
+     * @param lineIndex Index of first byte of row
+     * @param srcX X coordinate of first pixel
+     * @param dest Destination buffer
+     * @param destIndex Index of first pixel in destination buffer
+     * @param count Number of pixels to convert
+     */
+    public static void yuv411ToRGB(byte[] src, int lineIndex, int srcX, int[] dest, int destIndex, int count) {
+        for (int x = srcX, end = srcX + count; x < end; x++, destIndex++) {
+            int block = lineIndex + (x >> 2) * 6;
+            int pos = x & 3;
+            int y = src[block + pos + 1 + (pos >> 1)] & 0xFF;
+            dest[destIndex] = YUVConverter.toRGB(y, src[block] & 0xFF, src[block + 3] & 0xFF);
+        }
+    }
+
+    /**
+     * Converts row of raw Bayer pattern pixels using bilinear interpolation.
+     * Lines above and below are mirrored at image borders.
+     *
+     * @param src Source array
+     * @param above Index of first byte of line above
+     * @param line Index of first byte of line to convert
+     * @param below Index of first byte of line below
+     * @param lineWidth Width of the whole image (at least 2)
+     * @param redLine Does line contain red pixels (and green) - or blue pixels (and green)?
+     * @param colorParity Parity of x coordinates of the red (or blue) pixels in this line
+     * @param srcX X coordinate of first pixel
+     * @param dest Destination buffer
+     * @param destIndex Index of first pixel in destination buffer
+     * @param count Number of pixels to convert
+     */
+    public static void bayerToRGB(byte[] src, int above, int line, int below, int lineWidth, boolean redLine, int colorParity, int srcX, int[] dest, int destIndex, int count) {
+        final int last = lineWidth - 1;
+        for (int x = srcX, end = srcX + count; x < end; x++, destIndex++) {
+            int left = x == 0 ? 1 : x - 1;
+            int right = x == last ? last - 1 : x + 1;
+            int color, green, otherColor;
+            if ((x & 1) == colorParity) {
+                color = src[line + x] & 0xFF;
+                green = ((src[line + left] & 0xFF) + (src[line + right] & 0xFF) + (src[above + x] & 0xFF) + (src[below + x] & 0xFF) + 2) >> 2;
+                otherColor = ((src[above + left] & 0xFF) + (src[above + right] & 0xFF) + (src[below + left] & 0xFF) + (src[below + right] & 0xFF) + 2) >> 2;
+            } else {
+                green = src[line + x] & 0xFF;
+                color = ((src[line + left] & 0xFF) + (src[line + right] & 0xFF) + 1) >> 1;
+                otherColor = ((src[above + x] & 0xFF) + (src[below + x] & 0xFF) + 1) >> 1;
+            }
+            dest[destIndex] = redLine ? ((color << 16) | (green << 8) | otherColor) : ((otherColor << 16) | (green << 8) | color);
+        }
+    }
+}
@@ -0,0 +1,205 @@
+//
+// You received this file as part of Finroc
+// A framework for intelligent robot control
+//
+// Copyright (C) Finroc GbR (finroc.org)
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+//
+//----------------------------------------------------------------------
+package org.finroc.plugins.data_types.util;
+
+import java.util.Arrays;
+
+/**
+ * Spatial index over the axis-aligned bounding boxes of a fixed list of items (identified by their index in that list).
+ *
+ * Items are stored in the grid cell containing their center - so every item is stored exactly once.
+ * Items larger than a cell are kept in a separate list (with their bounds) and items without bounds are always returned.
+ * Queries return candidate items in ascending order, so callers can preserve the items' original (e.g. painting) order.
+ * Immutable after construction - and therefore thread-safe.
+ */
+public class UniformGridIndex {
+
+    /** Targeted average number of items per cell */
+    private static final int ITEMS_PER_CELL = 4;
+
+    /** Maximum number of cells per dimension */
+    private static final int MAX_CELLS_PER_DIMENSION = 2048;
+
+    /** Bounds of all items with bounds */
+    private final double minX, minY, maxX, maxY;
+
+    /** Number of cells per dimension - and cell size */
+    private final int columns, rows;
+    private final double cellWidth, cellHeight;
+
+    /** Items in cell i are cellItems[cellStart[i]] ... cellItems[cellStart[i + 1] - 1] (ascending) */
+    private final int[] cellStart, cellItems;
+
+    /** Items larger than a cell (ascending) - and their bounds (minX, minY, maxX, maxY) */
+    private final int[] largeItems;
+    private final double[] largeItemBounds;
+
+    /** Items without bounds (ascending) */
+    private final int[] unboundedItems;
+
+    /** Total number of items */
+    private final int itemCount;
+
+    /**
+     * @param bounds Bounds of items: minX, minY, maxX, maxY for every item (minX is NaN for items without bounds)
+     * @param itemCount Number of items
+     */
+    public UniformGridIndex(double[] bounds, int itemCount) {
+        this.itemCount = itemCount;
+        double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY, maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+        int boundedCount = 0;
+        for (int i = 0; i < itemCount; i++) {
+            int b = i * 4;
+            if (!Double.isNaN(bounds[b])) {
+                minX = Math.min(minX, bounds[b]);
+                minY = Math.min(minY, bounds[b + 1]);
+                maxX = Math.max(maxX, bounds[b + 2]);
+                maxY = Math.max(maxY, bounds[b + 3]);
+                boundedCount++;
+            }
+        }
+        if (boundedCount == 0) {
+            minX = minY = maxX = maxY = 0;
+        }
+        this.minX = minX;
+        this.minY = minY;
+        this.maxX = maxX;
+        this.maxY = maxY;
+
+        // choose grid resolution so that cells are roughly square
+        double width = Math.max(maxX - minX, 1e-9), height = Math.max(maxY - minY, 1e-9);
+        double cells = Math.max(1, boundedCount / ITEMS_PER_CELL);
+        columns = (int)Math.max(1, Math.min(MAX_CELLS_PER_DIMENSION, Math.round(Math.sqrt(cells * width / height))));
+        rows = (int)Math.max(1, Math.min(MAX_CELLS_PER_DIMENSION, Math.round(cells / columns)));
+        cellWidth = width / columns;
+        cellHeight = height / rows;
+
+        // count items per cell (cell index -1: unbounded, -2: large)
+        int[] itemCell = new int[itemCount];
+        cellStart = new int[columns * rows + 1];
+        int largeCount = 0, unboundedCount = 0;
+        for (int i = 0; i < itemCount; i++) {
+            int b = i * 4;
+            if (Double.isNaN(bounds[b])) {
+                itemCell[i] = -1;
+                unboundedCount++;
+            } else if (bounds[b + 2] - bounds[b] > cellWidth || bounds[b + 3] - bounds[b + 1] > cellHeight) {
+                itemCell[i] = -2;
+                largeCount++;
+            } else {
+                int cell = getRow((bounds[b + 1] + bounds[b + 3]) * 0.5) * columns + getColumn((bounds[b] + bounds[b + 2]) * 0.5);
+                itemCell[i] = cell;
+                cellStart[cell + 1]++;
+            }
+        }
+        for (int i = 1; i < cellStart.length; i++) {
+            cellStart[i] += cellStart[i - 1];
+        }
+
+        // fill cells (in ascending item order)
+        cellItems = new int[cellStart[cellStart.length - 1]];
+        int[] cellFill = Arrays.copyOf(cellStart, cellStart.length - 1);
+        largeItems = new int[largeCount];
+        largeItemBounds = new double[largeCount * 4];
+        unboundedItems = new int[unboundedCount];
+        largeCount = 0;
+        unboundedCount = 0;
+        for (int i = 0; i < itemCount; i++) {
+            int cell = itemCell[i];
+            if (cell >= 0) {
+                cellItems[cellFill[cell]++] = i;
+            } else if (cell == -1) {
+                unboundedItems[unboundedCount++] = i;
+            } else {
+                System.arraycopy(bounds, i * 4, largeItemBounds, largeCount * 4, 4);
+                largeItems[largeCount++] = i;
+            }
+        }
+    }
+
+    /**
+     * Determines items whose bounds possibly intersect the specified area
+     *
+     * @return Indices of these items in ascending order - or null if area covers the bounds of all items
+     */
+    public int[] query(double minX, double minY, double maxX, double maxY) {
+        if (minX <= this.minX && minY <= this.minY && maxX >= this.maxX && maxY >= this.maxY) {
+            return null;
+        }
+
+        // cells with centers of items that can intersect area
+        int column1 = getColumn(minX - cellWidth * 0.5), column2 = getColumn(maxX + cellWidth * 0.5);
+        int row1 = getRow(minY - cellHeight * 0.5), row2 = getRow(maxY + cellHeight * 0.5);
+        boolean cellsIntersect = maxX + cellWidth >= this.minX && minX - cellWidth <= this.maxX && maxY + cellHeight >= this.minY && minY - cellHeight <= this.maxY;
+
+        int count = unboundedItems.length + largeItems.length;
+        if (cellsIntersect) {
+            for (int row = row1; row <= row2; row++) {
+                count += cellStart[row * columns + column2 + 1] - cellStart[row * columns + column1];
+            }
+        }
+        int[] result = new int[count];
+        System.arraycopy(unboundedItems, 0, result, 0, unboundedItems.length);
+        count = unboundedItems.length;
+        for (int i = 0; i < largeItems.length; i++) {
+            int b = i * 4;
+            if (largeItemBounds[b] <= maxX && largeItemBounds[b + 2] >= minX && largeItemBounds[b + 1] <= maxY && largeItemBounds[b + 3] >= minY) {
+                result[count++] = largeItems[i];
+            }
+        }
+        if (cellsIntersect) {
+            for (int row = row1; row <= row2; row++) {
+                int start = cellStart[row * columns + column1], end = cellStart[row * columns + column2 + 1];
+                System.arraycopy(cellItems, start, result, count, end - start);
+                count += end - start;
+            }
+        }
+        if (count < result.length) {
+            result = Arrays.copyOf(result, count);
+        }
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * @return Number of items in index
+     */
+    public int getItemCount() {
+        return itemCount;
+    }
+
+    /**
+     * @param x X coordinate
+     * @return Column containing coordinate (clamped to grid)
+     */
+    private int getColumn(double x) {
+        return (int)Math.max(0, Math.min(columns - 1, Math.floor((x - minX) / cellWidth)));
+    }
+
+    /**
+     * @param y Y coordinate
+     * @return Row containing coordinate (clamped to grid)
+     */
+    private int getRow(double y) {
+        return (int)Math.max(0, Math.min(rows - 1, Math.floor((y - minY) / cellHeight)));
+    }
+}
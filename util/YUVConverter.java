@@ -0,0 +1,226 @@
+//
+// You received this file as part of Finroc
+// A framework for intelligent robot control
+//
+// Copyright (C) Finroc GbR (finroc.org)
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+//
+//----------------------------------------------------------------------
+package org.finroc.plugins.data_types.util;
+
+/**
+ * Row-wise YUV to RGB conversion based on precomputed lookup tables.
+ *
+ * Uses the same fixed-point coefficients as before (10 bit fraction), so results are
+ * identical to the per-pixel formula - but multiplications are replaced by table lookups
+ * and the three clamps by a lookup in a saturation table.
+ * Chroma contributions are looked up once per chroma sample and shared by all pixels using it.
+ * rgbToY/U/V() provide the inverse conversion (e.g. for converting images to YUV formats).
+ */
+public class YUVConverter {
+
+    /** Contribution of V to red */
+    private static final int[] RV = new int[256];
+
+    /** Contribution of U and V to green (not yet shifted) */
+    private static final int[] GU = new int[256], GV = new int[256];
+
+    /** Contribution of U to blue */
+    private static final int[] BU = new int[256];
+
+    /** Saturation table: CLAMP[x + CLAMP_OFFSET] is x clamped to 0..255 */
+    private static final int CLAMP_OFFSET = 384;
+    private static final int[] CLAMP = new int[1024];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int c = i - 128;
+            RV[i] = (c * 1436) >> 10;
+            GU[i] = c * 352;
+            GV[i] = c * 731;
+            BU[i] = (c * 1814) >> 10;
+        }
+        for (int i = 0; i < CLAMP.length; i++) {
+            CLAMP[i] = Math.min(255, Math.max(0, i - CLAMP_OFFSET));
+        }
+    }
+
+    /**
+     * Converts single YUV pixel to RGB
+     *
+     * @param y Y component (0..255)
+     * @param u U component (0..255)
+     * @param v V component (0..255)
+     * @return RGB value
+     */
+    public static int toRGB(int y, int u, int v) {
+        y += CLAMP_OFFSET;
+        return (CLAMP[y + RV[v]] << 16) | (CLAMP[y - ((GU[u] + GV[v]) >> 10)] << 8) | CLAMP[y + BU[u]];
+    }
+
+    /**
+     * Converts row of YUV444 pixels
+     *
+     * @param src Source array
+     * @param srcIndex Index of first pixel's first byte in source array
+     * @param dest Destination buffer
+     * @param destIndex Index of first pixel in destination buffer
+     * @param count Number of pixels to convert
+     */
+    public static void yuv444ToRGB(byte[] src, int srcIndex, int[] dest, int destIndex, int count) {
+        for (int end = destIndex + count; destIndex < end; destIndex++, srcIndex += 3) {
+            dest[destIndex] = toRGB(src[srcIndex] & 0xFF, src[srcIndex + 1] & 0xFF, src[srcIndex + 2] & 0xFF);
+        }
+    }
+
+    /**
+     * Converts row of pixels whose chroma is subsampled by a factor of two horizontally.
+     * Covers packed (e.g. YUV422) as well as planar (YUV420P) and semi-planar (NV21) layouts.
+     *
+     * @param src Source array
+     * @param yIndex Index of first pixel's Y value
+     * @param yStep Distance between Y values of adjacent pixels
+     * @param uIndex Index of first pixel's U value
+     * @param vIndex Index of first pixel's V value
+     * @param uvStep Distance between adjacent chroma samples
+     * @param odd Is first pixel the second pixel sharing its chroma sample?
+     * @param dest Destination buffer
+     * @param destIndex Index of first pixel in destination buffer
+     * @param count Number of pixels to convert
+     */
+    public static void subsampledRowToRGB(byte[] src, int yIndex, int yStep, int uIndex, int vIndex, int uvStep, boolean odd, int[] dest, int destIndex, int count) {
+        if (count <= 0) {
+            return;
+        }
+        if (odd) {
+            dest[destIndex] = toRGB(src[yIndex] & 0xFF, src[uIndex] & 0xFF, src[vIndex] & 0xFF);
+            destIndex++;
+            yIndex += yStep;
+            uIndex += uvStep;
+            vIndex += uvStep;
+            count--;
+        }
+        final int yStep2 = yStep * 2;
+        for (int end = destIndex + (count & ~1); destIndex < end; destIndex += 2, yIndex += yStep2, uIndex += uvStep, vIndex += uvStep) {
+            int u = src[uIndex] & 0xFF;
+            int v = src[vIndex] & 0xFF;
+            int r = RV[v] + CLAMP_OFFSET;
+            int g = CLAMP_OFFSET - ((GU[u] + GV[v]) >> 10);
+            int b = BU[u] + CLAMP_OFFSET;
+            int y = src[yIndex] & 0xFF;
+            dest[destIndex] = (CLAMP[y + r] << 16) | (CLAMP[y + g] << 8) | CLAMP[y + b];
+            y = src[yIndex + yStep] & 0xFF;
+            dest[destIndex + 1] = (CLAMP[y + r] << 16) | (CLAMP[y + g] << 8) | CLAMP[y + b];
+        }
+        if ((count & 1) != 0) {
+            dest[destIndex] = toRGB(src[yIndex] & 0xFF, src[uIndex] & 0xFF, src[vIndex] & 0xFF);
+        }
+    }
+
+    /**
+     * Converts two rows of pixels sharing the same chroma row (chroma subsampled by a factor of two in both directions).
+     * Chroma contributions are looked up once for each block of 2x2 pixels.
+     *
+     * @param src Source array
+     * @param yIndex1 Index of Y value of first pixel in first row
+     * @param yIndex2 Index of Y value of first pixel in second row
+     * @param uIndex Index of first pixel's U value
+     * @param vIndex Index of first pixel's V value
+     * @param uvStep Distance between adjacent chroma samples
+     * @param odd Is first pixel the second pixel sharing its chroma sample?
+     * @param dest Destination buffer
+     * @param destIndex1 Index of first pixel of first row in destination buffer
+     * @param destIndex2 Index of first pixel of second row in destination buffer
+     * @param count Number of pixels per row to convert
+     */
+    public static void subsampledRowPairToRGB(byte[] src, int yIndex1, int yIndex2, int uIndex, int vIndex, int uvStep, boolean odd, int[] dest, int destIndex1, int destIndex2, int count) {
+        if (count <= 0) {
+            return;
+        }
+        if (odd) {
+            int u = src[uIndex] & 0xFF;
+            int v = src[vIndex] & 0xFF;
+            dest[destIndex1] = toRGB(src[yIndex1] & 0xFF, u, v);
+            dest[destIndex2] = toRGB(src[yIndex2] & 0xFF, u, v);
+            destIndex1++;
+            destIndex2++;
+            yIndex1++;
+            yIndex2++;
+            uIndex += uvStep;
+            vIndex += uvStep;
+            count--;
+        }
+        for (int end = destIndex1 + (count & ~1); destIndex1 < end; destIndex1 += 2, destIndex2 += 2, yIndex1 += 2, yIndex2 += 2, uIndex += uvStep, vIndex += uvStep) {
+            int u = src[uIndex] & 0xFF;
+            int v = src[vIndex] & 0xFF;
+            int r = RV[v] + CLAMP_OFFSET;
+            int g = CLAMP_OFFSET - ((GU[u] + GV[v]) >> 10);
+            int b = BU[u] + CLAMP_OFFSET;
+            int y = src[yIndex1] & 0xFF;
+            dest[destIndex1] = (CLAMP[y + r] << 16) | (CLAMP[y + g] << 8) | CLAMP[y + b];
+            y = src[yIndex1 + 1] & 0xFF;
+            dest[destIndex1 + 1] = (CLAMP[y + r] << 16) | (CLAMP[y + g] << 8) | CLAMP[y + b];
+            y = src[yIndex2] & 0xFF;
+            dest[destIndex2] = (CLAMP[y + r] << 16) | (CLAMP[y + g] << 8) | CLAMP[y + b];
+            y = src[yIndex2 + 1] & 0xFF;
+            dest[destIndex2 + 1] = (CLAMP[y + r] << 16) | (CLAMP[y + g] << 8) | CLAMP[y + b];
+        }
+        if ((count & 1) != 0) {
+            int u = src[uIndex] & 0xFF;
+            int v = src[vIndex] & 0xFF;
+            dest[destIndex1] = toRGB(src[yIndex1] & 0xFF, u, v);
+            dest[destIndex2] = toRGB(src[yIndex2] & 0xFF, u, v);
+        }
+    }
+
+    /**
+     * Converts row of YUV422 (Y1 U Y2 V) pixels
+     *
+     * @param src Source array
+     * @param srcIndex Index of the macro pixel containing the first pixel
+     * @param odd Is first pixel the second pixel in its macro pixel?
+     * @param dest Destination buffer
+     * @param destIndex Index of first pixel in destination buffer
+     * @param count Number of pixels to convert
+     */
+    public static void yuv422ToRGB(byte[] src, int srcIndex, boolean odd, int[] dest, int destIndex, int count) {
+        subsampledRowToRGB(src, srcIndex + (odd ? 2 : 0), 2, srcIndex + 1, srcIndex + 3, 4, odd, dest, destIndex, count);
+    }
+
+    /**
+     * @param rgb RGB value (0x??RRGGBB)
+     * @return Y component (0..255) - inverse of toRGB()
+     */
+    public static int rgbToY(int rgb) {
+        return (306 * ((rgb >> 16) & 0xFF) + 601 * ((rgb >> 8) & 0xFF) + 117 * (rgb & 0xFF) + 512) >> 10;
+    }
+
+    /**
+     * @param rgb RGB value (0x??RRGGBB)
+     * @return U component (0..255) - inverse of toRGB()
+     */
+    public static int rgbToU(int rgb) {
+        return CLAMP[CLAMP_OFFSET + 128 + ((-173 * ((rgb >> 16) & 0xFF) - 339 * ((rgb >> 8) & 0xFF) + 512 * (rgb & 0xFF) + 512) >> 10)];
+    }
+
+    /**
+     * @param rgb RGB value (0x??RRGGBB)
+     * @return V component (0..255) - inverse of toRGB()
+     */
+    public static int rgbToV(int rgb) {
+        return CLAMP[CLAMP_OFFSET + 128 + ((512 * ((rgb >> 16) & 0xFF) - 429 * ((rgb >> 8) & 0xFF) - 83 * (rgb & 0xFF) + 512) >> 10)];
+    }
+}